@@ -17,6 +17,7 @@ package sal;
 /*
  * Created by simon on 30/06/17.
  */
+import java.util.Arrays;
 import java.util.Scanner;
 
 public class Library {
@@ -96,4 +97,86 @@ public class Library {
         return s.length();
     }
 
+    // runs of array elements, for loops replaced by the compiler: where the
+    // loop would go outside an array it is done an element at a time, so it
+    // fails at the same element
+    public static void fill(int[] a, int from, int to, int value) {
+        if (from < 0 || to > a.length) {
+            for (int i = from; i < to; i++) {
+                a[i] = value;
+            }
+        } else if (from < to) {
+            Arrays.fill(a, from, to, value);
+        }
+    }
+
+    public static void fill(String[] a, int from, int to, String value) {
+        if (from < 0 || to > a.length) {
+            for (int i = from; i < to; i++) {
+                a[i] = value;
+            }
+        } else if (from < to) {
+            Arrays.fill(a, from, to, value);
+        }
+    }
+
+    public static void copy(int[] source, int[] target, int from, int to) {
+        if (from < 0 || to > source.length || to > target.length) {
+            for (int i = from; i < to; i++) {
+                target[i] = source[i];
+            }
+        } else if (from < to) {
+            System.arraycopy(source, from, target, from, to - from);
+        }
+    }
+
+    public static void copy(String[] source, String[] target, int from, int to) {
+        if (from < 0 || to > source.length || to > target.length) {
+            for (int i = from; i < to; i++) {
+                target[i] = source[i];
+            }
+        } else if (from < to) {
+            System.arraycopy(source, from, target, from, to - from);
+        }
+    }
+
+    // a buffer used again for an array made in a loop: cleared as a new
+    // array would be if it is the right size, otherwise a new array
+    public static int[] reuse(int[] buffer, int size) {
+        if (buffer.length != size) {
+            return new int[size];
+        }
+        Arrays.fill(buffer, 0);
+        return buffer;
+    }
+
+    public static String[] reuse(String[] buffer, int size) {
+        if (buffer.length != size) {
+            return new String[size];
+        }
+        Arrays.fill(buffer, null);
+        return buffer;
+    }
+
+    public static int sum(int total, int[] a, int from, int to) {
+        for (int i = from; i < to; i++) {
+            total += a[i];
+        }
+        return total;
+    }
+
+    public static int min(int least, int[] a, int from, int to) {
+        for (int i = from; i < to; i++) {
+            least = Math.min(least, a[i]);
+        }
+        return least;
+    }
+
+    public static int max(int greatest, int[] a, int from, int to) {
+        for (int i = from; i < to; i++) {
+            greatest = Math.max(greatest, a[i]);
+        }
+        return greatest;
+    }
+
 }
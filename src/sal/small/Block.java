@@ -0,0 +1,94 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package sal.small;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A basic block of the SSA form: values worked out one after another, with
+ * no way in except at the top and no way out except at the bottom.
+ *
+ * @author Simon
+ * @author Azarias
+ */
+class Block {
+
+    final int id;
+    final List<SsaValue> phis = new ArrayList<>();
+    final List<SsaValue> values = new ArrayList<>();
+    final List<Block> predecessors = new ArrayList<>();
+    final List<Block> successors = new ArrayList<>();
+
+    /**
+     * Value of each variable at the end of the block, as far as it is known.
+     */
+    final Map<String, SsaValue> definitions = new HashMap<>();
+
+    /**
+     * Phis made before all the predecessors were known, see {@link Ssa}.
+     */
+    final Map<String, SsaValue> incomplete = new LinkedHashMap<>();
+
+    /**
+     * True once no more predecessors will be added.
+     */
+    boolean sealed;
+
+    /**
+     * The nearest block every path from the start goes through to get here,
+     * null for the start and for blocks which can't be reached.
+     */
+    Block dominator;
+
+    /**
+     * Position in reverse postorder, -1 if it can't be reached.
+     */
+    int order = -1;
+
+    Block(int id) {
+        this.id = id;
+    }
+
+    void addSuccessor(Block next) {
+        successors.add(next);
+        next.predecessors.add(this);
+    }
+
+    /**
+     * @return true if every path to the other block goes through this one.
+     */
+    boolean dominates(Block other) {
+        for (Block b = other; b != null; b = b.dominator) {
+            if (b == this) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("B" + id + ":");
+        predecessors.forEach(b -> text.append(" B").append(b.id));
+        text.append("\n");
+        phis.forEach(v -> text.append("  ").append(v).append("\n"));
+        values.forEach(v -> text.append("  ").append(v).append("\n"));
+        return text.toString();
+    }
+}
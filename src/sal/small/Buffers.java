@@ -0,0 +1,181 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package sal.small;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static sal.small.Token.*;
+import static sal.small.Tree.*;
+
+/**
+ * Reuse of arrays made in loops. 't = [n] entier' in a loop would make a new
+ * array every time round. If t is only ever indexed, measured with 'lon' or
+ * given a new array, no other variable can see the array it had, so once t
+ * has been given another one nothing can tell whether the old array was
+ * used again.
+ *
+ * Each such allocation gets a buffer variable, given an empty array before
+ * the outermost loop. In the loop the buffer is cleared if it is already the
+ * right length, or else replaced by a new array, and then given to t. The
+ * size doesn't have to stay the same, but when it does nothing is allocated
+ * after the first time round.
+ *
+ * @author Simon
+ * @author Azarias
+ */
+public class Buffers {
+
+    /**
+     * Start of the names of the variables made here.
+     */
+    static final String BUFFER = "_buf";
+
+    /**
+     * Made by {@link Idioms}: the library doesn't keep the arrays passed to
+     * it.
+     */
+    private static final EnumSet<Token> LIBRARY = EnumSet.of(ARRAY_FILL, ARRAY_COPY, ARRAY_SUM, ARRAY_MIN, ARRAY_MAX);
+
+    private final Types types;
+    private final Set<String> escaping = new HashSet<>();
+    private int buffers;
+
+    private Buffers(Tree<Token> program) {
+        types = new Types(program);
+        uses(program, null, 0);
+    }
+
+    /**
+     * Reuse the arrays made in the loops of a program.
+     *
+     * @param tree AST of the program.
+     * @return the program, changed in place.
+     */
+    public static Tree<Token> program(Tree<Token> tree) {
+        new Buffers(tree).statements(tree, null);
+        return tree;
+    }
+
+    /**
+     * Note the variables whose array might be seen through another.
+     */
+    private void uses(Tree<Token> tree, Tree<Token> parent, int index) {
+        if (tree == null) {
+            return;
+        }
+        if (tree.isLeaf()) {
+            if (tree.token() == IDENTIFIER && !contained(parent, index)) {
+                escaping.add(tree.toString());
+            }
+            return;
+        }
+        for (int i = 0; i < tree.children(); i++) {
+            uses(tree.child(i), tree, i);
+        }
+    }
+
+    /**
+     * True if a variable in this place can't share its array.
+     */
+    private static boolean contained(Tree<Token> parent, int index) {
+        if (parent == null) {
+            return false;
+        }
+        switch (parent.token()) {
+            case LSQ:
+            case RSQ:
+                return index == 0;
+            case LENGTH:
+                return true;
+            case ASSIGN:
+                return index == 0 && parent.child(1).token() == NEW_ARRAY;
+            default:
+                return LIBRARY.contains(parent.token());
+        }
+    }
+
+    /**
+     * Look for allocations in a statement list.
+     *
+     * @param before where to put the buffers of the outermost loop, null
+     * outside loops.
+     */
+    private void statements(Tree<Token> list, List<Tree<Token>> before) {
+        if (list == null || list.isLeaf()) {
+            return;
+        }
+        for (int i = 0; i < list.children(); i++) {
+            Tree<Token> statement = list.child(i);
+            if (statement == null) {
+                continue;
+            }
+            switch (statement.token()) {
+                case STATEMENTLIST:
+                case BLOCK:
+                    statements(statement, before);
+                    break;
+                case IF:
+                case SWITCH:
+                    for (int j = 1; j < statement.children(); j += 2) {
+                        statements(statement.child(j), before);
+                    }
+                    break;
+                case WHILE:
+                case UNTIL:
+                    if (before == null) {
+                        List<Tree<Token>> buffers = new ArrayList<>();
+                        statements(statement.child(1), buffers);
+                        list.allChildren().addAll(i, buffers);
+                        i += buffers.size();
+                    } else {
+                        statements(statement.child(1), before);
+                    }
+                    break;
+                case ASSIGN:
+                    if (before != null && reusable(statement)) {
+                        list.allChildren().addAll(i + 1, reuse(statement, before));
+                        list.allChildren().remove(i);
+                        i++;
+                    }
+                    break;
+                default:
+            }
+        }
+    }
+
+    private boolean reusable(Tree<Token> assign) {
+        String name = assign.child(0).toString();
+        Type type = types.variable(name);
+        return assign.child(1).token() == NEW_ARRAY && type != null && type.isArray() && !escaping.contains(name);
+    }
+
+    /**
+     * @return the statements to use instead of 't = [n] type'.
+     */
+    private List<Tree<Token>> reuse(Tree<Token> assign, List<Tree<Token>> before) {
+        String buffer = BUFFER + buffers++;
+        Tree<Token> allocation = assign.child(1);
+        Tree<Token> type = allocation.child(1);
+        before.add(list(ASSIGN, leaf(IDENTIFIER, buffer), list(NEW_ARRAY, Fold.number(0), leaf(type.token()))));
+        List<Tree<Token>> statements = new ArrayList<>();
+        statements.add(list(ASSIGN, leaf(IDENTIFIER, buffer), list(ARRAY_REUSE, leaf(IDENTIFIER, buffer), allocation.child(0), type)));
+        statements.add(list(ASSIGN, assign.child(0), leaf(IDENTIFIER, buffer)));
+        return statements;
+    }
+}
@@ -0,0 +1,645 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package sal.small;
+
+import sal.util.ErrorStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static sal.small.Descriptor.*;
+
+/**
+ * The class generated for a SMALL program, and a writer which turns it
+ * straight into the bytes of a .class file - no Jasmin needed.
+ *
+ * The writer builds its own constant pool, lays the code out to find the
+ * offset of every label, then patches jumps and switches with those offsets.
+ *
+ * @author Simon
+ * @author Azarias
+ */
+public class ClassFile {
+
+    /**
+     * Java 5: the last version which doesn't need StackMapTable frames.
+     */
+    public static final int DEFAULT_VERSION = 49;
+
+    /**
+     * Java 8: checked by the split verifier using the StackMapTable frames
+     * written with each method.
+     */
+    public static final int FRAMES_VERSION = 52;
+
+    final String name;
+    final Map<String, Type> fields = new LinkedHashMap<>();
+    final List<Method> methods = new ArrayList<>();
+    int version = DEFAULT_VERSION;
+
+    /**
+     * Create a class with a default constructor.
+     *
+     * @param name name of the class (and of the .class file).
+     */
+    public ClassFile(String name) {
+        this.name = name;
+        Method init = addMethod("<init>", "()V", Method.PUBLIC);
+        init.add(new Instruction("aload_0", null));
+        init.add(new Instruction("invokespecial", "java/lang/Object/<init>()V"));
+        init.add(new Instruction("return", null));
+        init.setMaxLocals(1);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Method addMethod(String name, String descriptor, int access) {
+        Method m = new Method(name, descriptor, access);
+        methods.add(m);
+        return m;
+    }
+
+    public List<Method> getMethods() {
+        return methods;
+    }
+
+    /**
+     * Add a private static field.
+     *
+     * @param name name of the field.
+     * @param type its type.
+     */
+    public void addField(String name, Type type) {
+        fields.put(name, type);
+    }
+
+    public Map<String, Type> getFields() {
+        return fields;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @param version class file major version; from 50 on each method gets a
+     * StackMapTable.
+     */
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    /**
+     * Class names in Jasmin may use '.' where the class file needs '/'.
+     */
+    static String internal(String name) {
+        return name.replace('.', '/');
+    }
+
+    /**
+     * Constant pool under construction. Each constant is only added once.
+     */
+    static class ConstantPool {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> index = new HashMap<>();
+        private int count = 1;
+
+        private interface Entry {
+
+            void write(DataOutputStream out) throws IOException;
+        }
+
+        private int add(String key, Entry entry) {
+            Integer i = index.get(key);
+            if (i == null) {
+                try {
+                    entry.write(out);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);	// can't happen with a byte array
+                }
+                i = count++;
+                index.put(key, i);
+            }
+            return i;
+        }
+
+        int utf8(String text) {
+            return add("U" + text, out -> {
+                out.writeByte(1);
+                out.writeUTF(text);
+            });
+        }
+
+        int integer(int value) {
+            return add("I" + value, out -> {
+                out.writeByte(3);
+                out.writeInt(value);
+            });
+        }
+
+        int classRef(String name) {
+            int nameIndex = utf8(internal(name));
+            return add("C" + internal(name), out -> {
+                out.writeByte(7);
+                out.writeShort(nameIndex);
+            });
+        }
+
+        int string(String value) {
+            int valueIndex = utf8(value);
+            return add("S" + value, out -> {
+                out.writeByte(8);
+                out.writeShort(valueIndex);
+            });
+        }
+
+        int nameAndType(String name, String type) {
+            int nameIndex = utf8(name);
+            int typeIndex = utf8(internal(type));
+            return add("N" + name + " " + internal(type), out -> {
+                out.writeByte(12);
+                out.writeShort(nameIndex);
+                out.writeShort(typeIndex);
+            });
+        }
+
+        private int member(int tag, String owner, String name, String type) {
+            int classIndex = classRef(owner);
+            int natIndex = nameAndType(name, type);
+            return add(tag + internal(owner) + "." + name + " " + internal(type), out -> {
+                out.writeByte(tag);
+                out.writeShort(classIndex);
+                out.writeShort(natIndex);
+            });
+        }
+
+        /**
+         * @param operand as for Jasmin: "Owner/field type".
+         */
+        int field(String operand) {
+            int space = operand.indexOf(' ');
+            String member = operand.substring(0, space);
+            int slash = member.lastIndexOf('/');
+            return member(9, member.substring(0, slash), member.substring(slash + 1), operand.substring(space + 1).trim());
+        }
+
+        /**
+         * @param operand as for Jasmin: "Owner/name(args)result".
+         */
+        int method(String operand) {
+            int paren = operand.indexOf('(');
+            int slash = operand.lastIndexOf('/', paren);
+            return member(10, operand.substring(0, slash), operand.substring(slash + 1, paren), operand.substring(paren));
+        }
+
+        /**
+         * @param operand an int or a quoted string as written for ldc.
+         */
+        int constant(String operand) {
+            return operand.startsWith("\"") ? string(Code.stringValue(operand))
+                    : integer(Code.intValue(operand));
+        }
+
+        void write(DataOutputStream to) throws IOException {
+            to.writeShort(count);
+            bytes.writeTo(to);
+        }
+    }
+
+    /**
+     * Write one verification_type_info.
+     */
+    private static void writeType(String type, ConstantPool pool, int[] offsets, DataOutputStream out) throws IOException {
+        if (type.equals(Frames.TOP)) {
+            out.writeByte(0);
+        } else if (type.equals(Frames.INT)) {
+            out.writeByte(1);
+        } else if (type.startsWith("U")) {
+            out.writeByte(8);       // made by the 'new' at this offset
+            out.writeShort(offsets[Integer.parseInt(type.substring(1))]);
+        } else {
+            out.writeByte(7);
+            out.writeShort(pool.classRef(type.startsWith("L") ? type.substring(1, type.length() - 1) : type));
+        }
+    }
+
+    /**
+     * Locals as written in a frame: trailing empty slots are left out.
+     */
+    private static List<String> frameLocals(Frames.Frame frame) {
+        int n = frame.locals.length;
+        while (n > 0 && frame.locals[n - 1].equals(Frames.TOP)) {
+            n--;
+        }
+        return Arrays.asList(frame.locals).subList(0, n);
+    }
+
+    /**
+     * Build the StackMapTable of a method: a frame at each jump target,
+     * using the short forms when only the stack differs from the frame
+     * before.
+     *
+     * @return the attribute's contents, or null if no frames are needed.
+     */
+    private static byte[] stackMapTable(Method m, Frames frames, ConstantPool pool, int[] offsets) throws IOException {
+        Map<Label, Integer> labels = m.labelIndex();
+        SortedMap<Integer, Frames.Frame> targets = new TreeMap<>();
+        for (int i = 0; i < m.code.size(); i++) {
+            if (frames.reached(i)) {
+                for (Label target : Method.targets(m.code.get(i))) {
+                    int t = labels.get(target);
+                    // labels marked together share an offset: the frame after
+                    // the last of them has what reaches any of them
+                    while (t < m.code.size() && m.code.get(t) instanceof Instruction.Mark) {
+                        t++;
+                    }
+                    targets.put(offsets[t], frames.at(t));
+                }
+            }
+        }
+        if (targets.isEmpty()) {
+            return null;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(targets.size());
+        List<String> previous = frameLocals(frames.at(0));
+        int last = -1;
+        for (Map.Entry<Integer, Frames.Frame> entry : targets.entrySet()) {
+            int delta = entry.getKey() - last - 1;
+            Frames.Frame frame = entry.getValue();
+            List<String> locals = frameLocals(frame);
+            List<String> stack = frame.stack;
+            if (locals.equals(previous) && stack.isEmpty()) {
+                if (delta < 64) {
+                    out.writeByte(delta);                   // same_frame
+                } else {
+                    out.writeByte(251);                     // same_frame_extended
+                    out.writeShort(delta);
+                }
+            } else if (locals.equals(previous) && stack.size() == 1) {
+                if (delta < 64) {
+                    out.writeByte(64 + delta);              // same_locals_1_stack_item_frame
+                } else {
+                    out.writeByte(247);
+                    out.writeShort(delta);
+                }
+                writeType(stack.get(0), pool, offsets, out);
+            } else {
+                out.writeByte(255);                         // full_frame
+                out.writeShort(delta);
+                out.writeShort(locals.size());
+                for (String type : locals) {
+                    writeType(type, pool, offsets, out);
+                }
+                out.writeShort(stack.size());
+                for (String type : stack) {
+                    writeType(type, pool, offsets, out);
+                }
+            }
+            previous = locals;
+            last = entry.getKey();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static final Map<String, Integer> ARRAY_TYPES = new HashMap<>();
+
+    static {
+        ARRAY_TYPES.put("boolean", 4);
+        ARRAY_TYPES.put("char", 5);
+        ARRAY_TYPES.put("float", 6);
+        ARRAY_TYPES.put("double", 7);
+        ARRAY_TYPES.put("byte", 8);
+        ARRAY_TYPES.put("short", 9);
+        ARRAY_TYPES.put("int", 10);
+        ARRAY_TYPES.put("long", 11);
+    }
+
+    /**
+     * Local variable number and increment of an iinc operand.
+     */
+    private static int[] iincOperands(String operand) {
+        String[] parts = operand.trim().split("\\s+");
+        return new int[]{Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+    }
+
+    /**
+     * Number of bytes an instruction takes at a given offset.
+     */
+    private static int size(Instruction ins, int pc, ConstantPool pool) {
+        if (ins instanceof Instruction.Mark) {
+            return 0;
+        }
+        Opcode op = ins.opcode;
+        if (op == null) {
+            ErrorStream.log("Unknown instruction '%s' in generated code\n", ins.mnemonic);
+            return 0;
+        }
+        switch (op.kind) {
+            case BYTE:
+            case NEWARRAY:
+                return 2;
+            case SHORT:
+            case JUMP:
+            case FIELD:
+            case METHOD:
+            case CLASS:
+                return 3;
+            case CONSTANT:
+                return pool.constant(ins.operand) < 256 ? 2 : 3;
+            case LOCAL:
+                return Integer.parseInt(ins.operand.trim()) <= 255 ? 2 : 4;
+            case IINC: {
+                int[] iinc = iincOperands(ins.operand);
+                boolean narrow = iinc[0] <= 255 && iinc[1] >= Byte.MIN_VALUE && iinc[1] <= Byte.MAX_VALUE;
+                return narrow ? 3 : 6;
+            }
+            case SWITCH: {
+                Instruction.Switch sw = (Instruction.Switch) ins;
+                int padding = 3 - pc % 4;
+                return 1 + padding + (sw.table != null ? 12 + 4 * sw.table.length : 8 + 8 * sw.cases.size());
+            }
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Find the offset of each instruction.
+     *
+     * @return the length of the code.
+     */
+    private static int layout(Method m, ConstantPool pool, int[] offsets) {
+        int pc = 0;
+        for (int i = 0; i < m.code.size(); i++) {
+            offsets[i] = pc;
+            pc += size(m.code.get(i), pc, pool);
+        }
+        offsets[m.code.size()] = pc;
+        return pc;
+    }
+
+    /**
+     * Work out where each instruction of a method would go, without writing
+     * it. Constant pool indexes (which decide between ldc and ldc_w) are as
+     * if the method were alone in its class.
+     *
+     * @param m the method.
+     * @return the offset of each instruction, with one extra entry for the
+     * length of the code.
+     */
+    static int[] offsets(Method m) {
+        int[] offsets = new int[m.code.size() + 1];
+        layout(m, new ConstantPool(), offsets);
+        return offsets;
+    }
+
+    /**
+     * Encode the code of a method.
+     *
+     * @param m the method.
+     * @param pool constant pool to add references to.
+     * @param offsets filled with the offset of each instruction (one extra
+     * entry for the end of the code).
+     * @return the bytes of the code.
+     */
+    static byte[] encode(Method m, ConstantPool pool, int[] offsets) throws IOException {
+        List<Instruction> code = m.code;
+        Map<Label, Integer> labels = new HashMap<>();
+        // first lay the code out, so that the offset of every label is known
+        int pc = layout(m, pool, offsets);
+        for (int i = 0; i < code.size(); i++) {
+            Instruction ins = code.get(i);
+            if (ins instanceof Instruction.Mark) {
+                labels.put(((Instruction.Mark) ins).label, offsets[i]);
+            }
+        }
+        if (pc > 65535) {
+            ErrorStream.log("Method %s is %d bytes long, the limit is 65535\n", m.name, pc);
+        }
+
+        // now write it with the offsets patched in
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(pc);
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < code.size(); i++) {
+            Instruction ins = code.get(i);
+            Opcode op = ins.opcode;
+            if (op == null) {
+                continue;	// label, or an error already reported
+            }
+            int at = offsets[i];
+            switch (op.kind) {
+                case NONE:
+                    out.writeByte(op.code);
+                    break;
+                case BYTE:
+                    out.writeByte(op.code);
+                    out.writeByte(Integer.parseInt(ins.operand.trim()));
+                    break;
+                case SHORT:
+                    out.writeByte(op.code);
+                    out.writeShort(Integer.parseInt(ins.operand.trim()));
+                    break;
+                case CONSTANT: {
+                    int index = pool.constant(ins.operand);
+                    if (index < 256) {
+                        out.writeByte(Opcode.LDC.code);
+                        out.writeByte(index);
+                    } else {
+                        out.writeByte(Opcode.LDC_W.code);
+                        out.writeShort(index);
+                    }
+                    break;
+                }
+                case LOCAL: {
+                    int slot = Integer.parseInt(ins.operand.trim());
+                    if (slot <= 255) {
+                        out.writeByte(op.code);
+                        out.writeByte(slot);
+                    } else {
+                        out.writeByte(Opcode.WIDE.code);
+                        out.writeByte(op.code);
+                        out.writeShort(slot);
+                    }
+                    break;
+                }
+                case IINC: {
+                    int[] iinc = iincOperands(ins.operand);
+                    if (size(ins, at, pool) == 3) {
+                        out.writeByte(op.code);
+                        out.writeByte(iinc[0]);
+                        out.writeByte(iinc[1]);
+                    } else {
+                        out.writeByte(Opcode.WIDE.code);
+                        out.writeByte(op.code);
+                        out.writeShort(iinc[0]);
+                        out.writeShort(iinc[1]);
+                    }
+                    break;
+                }
+                case JUMP: {
+                    int offset = labels.get(((Instruction.Jump) ins).target) - at;
+                    if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                        ErrorStream.log("Method %s is too large: jump to %s is out of range\n", m.name, ins.operand);
+                    }
+                    out.writeByte(op.code);
+                    out.writeShort(offset);
+                    break;
+                }
+                case SWITCH: {
+                    Instruction.Switch sw = (Instruction.Switch) ins;
+                    out.writeByte(op.code);
+                    for (int pad = 3 - at % 4; pad > 0; pad--) {
+                        out.writeByte(0);
+                    }
+                    out.writeInt(labels.get(sw.defaultLabel) - at);
+                    if (sw.table != null) {
+                        out.writeInt(sw.low);
+                        out.writeInt(sw.low + sw.table.length - 1);
+                        for (Label label : sw.table) {
+                            out.writeInt(labels.get(label) - at);
+                        }
+                    } else {
+                        out.writeInt(sw.cases.size());
+                        for (Map.Entry<Integer, Label> c : sw.cases.entrySet()) {
+                            out.writeInt(c.getKey());
+                            out.writeInt(labels.get(c.getValue()) - at);
+                        }
+                    }
+                    break;
+                }
+                case FIELD:
+                    out.writeByte(op.code);
+                    out.writeShort(pool.field(ins.operand));
+                    break;
+                case METHOD:
+                    out.writeByte(op.code);
+                    out.writeShort(pool.method(ins.operand));
+                    break;
+                case CLASS:
+                    out.writeByte(op.code);
+                    out.writeShort(pool.classRef(ins.operand.trim()));
+                    break;
+                case NEWARRAY:
+                    out.writeByte(op.code);
+                    out.writeByte(ARRAY_TYPES.getOrDefault(ins.operand.trim(), 10));
+                    break;
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Write a method_info structure with its Code attribute.
+     */
+    private void writeMethod(Method m, ConstantPool pool, DataOutputStream out) throws IOException {
+        Frames frames = null;
+        if (version >= 50) {
+            m.removeUnreachable();
+            frames = new Frames(m, name);
+        }
+        int[] offsets = new int[m.code.size() + 1];
+        byte[] code = encode(m, pool, offsets);
+        byte[] stackMap = frames == null ? null : stackMapTable(m, frames, pool, offsets);
+        out.writeShort(m.access);
+        out.writeShort(pool.utf8(m.name));
+        out.writeShort(pool.utf8(internal(m.descriptor)));
+        out.writeShort(1);		// attributes: Code
+        out.writeShort(pool.utf8("Code"));
+        out.writeInt(12 + code.length + (stackMap == null ? 0 : 6 + stackMap.length));
+        out.writeShort(m.maxStack());
+        out.writeShort(m.maxLocals());
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0);		// exception table
+        if (stackMap == null) {
+            out.writeShort(0);		// attributes of the code
+        } else {
+            out.writeShort(1);		// attributes of the code: StackMapTable
+            out.writeShort(pool.utf8("StackMapTable"));
+            out.writeInt(stackMap.length);
+            out.write(stackMap);
+        }
+    }
+
+    /**
+     * Produce the contents of the .class file.
+     *
+     * @return the class file bytes.
+     */
+    public byte[] toBytes() {
+        try {
+            ConstantPool pool = new ConstantPool();
+            int thisClass = pool.classRef(name);
+            int superClass = pool.classRef("java/lang/Object");
+
+            // the body is written first as it fills in the constant pool
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(body);
+            out.writeShort(0x0021);	// public super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);		// interfaces
+            out.writeShort(fields.size());
+            for (Map.Entry<String, Type> field : fields.entrySet()) {
+                out.writeShort(Method.PRIVATE | Method.STATIC);
+                out.writeShort(pool.utf8(field.getKey()));
+                out.writeShort(pool.utf8(internal(field.getValue().getDescriptor())));
+                out.writeShort(0);	// attributes
+            }
+            out.writeShort(methods.size());
+            for (Method m : methods) {
+                writeMethod(m, pool, out);
+            }
+            out.writeShort(0);		// class attributes
+
+            ByteArrayOutputStream whole = new ByteArrayOutputStream(body.size() + 1024);
+            DataOutputStream file = new DataOutputStream(whole);
+            file.writeInt(0xCAFEBABE);
+            file.writeShort(0);		// minor version
+            file.writeShort(version);
+            pool.write(file);
+            body.writeTo(file);
+            return whole.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);	// can't happen with a byte array
+        }
+    }
+
+    /**
+     * Write the class file.
+     *
+     * @param out stream to write it to.
+     * @throws IOException if the stream can't be written.
+     */
+    public void write(OutputStream out) throws IOException {
+        out.write(toBytes());
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package sal.small;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Has a compiler started with 'sal.small.Main -server socket' compile for it:
+ *
+ * <pre>
+ * java sal.small.Client socket [options] files...
+ * java sal.small.Client socket -stop
+ * </pre>
+ *
+ * The arguments are the same as for Main, file names being from the
+ * client's working directory. What the compiler prints is printed here, and
+ * the client exits with the compiler's status. Only this class is loaded, so
+ * it starts quickly and the compiling is done by a JVM which is already warm.
+ *
+ * It sends the working directory, the number of arguments and the
+ * arguments, and gets back pieces of output, each a stream number, a length
+ * and the bytes, then the exit status.
+ *
+ * @author Simon
+ * @author Azarias
+ */
+public class Client {
+
+    /**
+     * Streams of the pieces the server sends back.
+     */
+    static final int EXIT = 0, OUT = 1, ERR = 2;
+
+    /**
+     * Sent instead of the number of arguments to stop the server.
+     */
+    static final int STOP = -1;
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("Valid arguments are: socket (-stop | arguments for sal.small.Main)");
+            System.exit(1);
+        }
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(args[0]))) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeUTF(System.getProperty("user.dir"));
+            if (args.length == 2 && args[1].equals("-stop")) {
+                out.writeInt(STOP);
+            } else {
+                out.writeInt(args.length - 1);
+                for (int i = 1; i < args.length; i++) {
+                    out.writeUTF(args[i]);
+                }
+            }
+            out.flush();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            for (int stream = in.readByte(); stream != EXIT; stream = in.readByte()) {
+                byte[] text = new byte[in.readInt()];
+                in.readFully(text);
+                PrintStream print = stream == ERR ? System.err : System.out;
+                print.write(text, 0, text.length);
+                print.flush();
+            }
+            System.exit(in.readInt());
+        } catch (IOException e) {
+            System.err.printf("Couldn\'t reach the compiler on %s : %s\n", args[0], e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -14,19 +14,20 @@
  */
 package sal.small;
 
-import sal.util.Templater;
 import sal.util.ErrorStream;
 
-import java.io.PrintStream;
 import java.util.EnumMap;
 import java.util.Map;
+import java.util.SortedMap;
 
 import static sal.small.Scope.*;
 import static sal.small.Descriptor.*;
 import static sal.small.Token.*;
 
 /**
- * Generate Jasmin (Java Assembler) code from a syntax tree.
+ * Generate Jasmin (Java Assembler) code from a syntax tree. The instructions
+ * are collected in a {@link Method} which can then be printed as assembler or
+ * written as a class file.
  * @author Simon
  * @author Azarias
  *
@@ -34,37 +35,44 @@ import static sal.small.Token.*;
 public class Code {
 
     /**
-     * Specify the print stream to use.
-     *
-     * @param outStream The stream to use (default is {@link System#out})
+     * @return the method instructions are added to, which belongs to the
+     * compilation on this thread.
      */
-    static PrintStream outStream;
+    static Method method() {
+        return Compilation.current().method;
+    }
 
-    static void setOutputStream(PrintStream out) {
-        outStream = out;
+    static void setMethod(Method m) {
+        Compilation.current().method = m;
     }
 
 // These produce appropriate output in JASMIN assembler  code.
     /**
-     * Calls printf on the {@link PrintStream}
+     * Add an instruction given as a formatted line of assembler.
      *
      * @param format format string - as for usual printf calls.
      * @param rest arguments to format string.
      */
     public static void emitf(String format, Object... rest) {
-        outStream.printf(format, rest);
+        emit(String.format(format, rest).trim());
     }
 
     /**
      * Output a line of assembler for an operation (such as nop, swap, etc)
-     * without arguments.
+     * without arguments. The operation may include its operand (as returned
+     * by {@link Variable#getLoad()}), separated by a space.
      *
      * @param code - name of the operation.
      *
      * Example {@code emit("swap");}
      */
     public static void emit(String code) {
-        emitf("  %s\n", code);
+        int space = code.indexOf(' ');
+        if (space < 0) {
+            method().add(new Instruction(code, null));
+        } else {
+            emit(code.substring(0, space), code.substring(space + 1).trim());
+        }
     }
 
     /**
@@ -77,7 +85,7 @@ public class Code {
      * Example {@code emit("new", "java/util/Scanner");}
      */
     public static void emit(String code, String operand) {
-        emitf("  %s %s\n", code, operand);
+        method().add(new Instruction(code, operand));
     }
 
     /**
@@ -92,6 +100,9 @@ public class Code {
 
     private static Map<Token, String> opCode = new EnumMap(Token.class);
 
+    // the relation which is true exactly when the key relation is false
+    private static Map<Token, Token> inverse = new EnumMap(Token.class);
+
     /**
      * Set up library entries. Create a string containing instructions to call a
      * library routine. '~' in string is replaced by Ljava.lang.String; - this
@@ -107,11 +118,12 @@ public class Code {
         opCode.put(MINUS, "isub");
         opCode.put(TIMES, "imul");
         opCode.put(DIVIDE, "idiv");
-        opCode.put(MOD, "imod");
+        opCode.put(MOD, "irem");
         opCode.put(NEGATE, "ineg");
         opCode.put(SHL, "ishl");
         opCode.put(SHR, "iushr");
         opCode.put(SHRS, "ishr");
+        opCode.put(BIT_AND, "iand");
 
         // these aren't in the 'default list' but are checked
         // for explicitly - this is a good place to store their opcodes
@@ -122,8 +134,14 @@ public class Code {
         opCode.put(EQ, "if_icmpeq");
         opCode.put(NE, "if_icmpne");
 
-        // load values onto the stack
-        opCode.put(NUMBER, "ldc");
+        inverse.put(GT, LE);
+        inverse.put(GE, LT);
+        inverse.put(LT, GE);
+        inverse.put(LE, GT);
+        inverse.put(EQ, NE);
+        inverse.put(NE, EQ);
+
+        // load values onto the stack (NUMBER is selected by loadInt)
         opCode.put(STRING, "ldc");
         opCode.put(ONE, "iconst_1");
         opCode.put(ZERO, "iconst_0");
@@ -143,17 +161,152 @@ public class Code {
         libCall(READ_STR, "readStr()~"); 		// call java scanner to get a String
         libCall(PRINT_STR, "print(~)V");		// print String
         libCall(PRINT_INT, "print(I)V");		// print String
+        libCall(ARRAY_SUM, "sum(I[III)I");		// total, array, from, to
+        libCall(ARRAY_MIN, "min(I[III)I");
+        libCall(ARRAY_MAX, "max(I[III)I");
 
     }
 
     public static void emit(Token t, String s) {
         if (t == IDENTIFIER) {
             emit(getVar(s).getLoad());
+        } else if (t == NUMBER) {
+            loadInt(intValue(s));
         } else {
             emit(opCode.get(t), s);
         }
     }
 
+    /**
+     * Push an int constant using the shortest instruction which can hold it:
+     * iconst_m1..iconst_5, then bipush, sipush and finally ldc.
+     *
+     * @param value the constant to load.
+     */
+    public static void loadInt(int value) {
+        if (value >= -1 && value <= 5) {
+            emit(value < 0 ? "iconst_m1" : "iconst_" + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            emit("bipush", value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            emit("sipush", value);
+        } else {
+            emit("ldc", value);
+        }
+    }
+
+    /**
+     * Value of a NUMBER leaf. Hex literals can exceed an int, they are wrapped
+     * as Java would.
+     *
+     * @param number text of the literal (already converted to decimal).
+     * @return the int it represents.
+     */
+    public static int intValue(String number) {
+        return (int) Long.parseLong(number);
+    }
+
+    /**
+     * Value of a STRING leaf: the quotes are removed and escapes (\n, \t, \"
+     * and unicode escapes etc) replaced by the characters they stand for.
+     *
+     * @param literal the string as written in the source, with its quotes.
+     * @return the string it represents.
+     */
+    public static String stringValue(String literal) {
+        StringBuilder value = new StringBuilder(literal.length());
+        int end = literal.length() - 1;
+        for (int i = 1; i < end; i++) {
+            char ch = literal.charAt(i);
+            if (ch != '\\' || i + 1 >= end) {
+                value.append(ch);
+                continue;
+            }
+            ch = literal.charAt(++i);
+            switch (ch) {
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 'b':
+                    value.append('\b');
+                    break;
+                case 'f':
+                    value.append('\f');
+                    break;
+                case 'u':
+                    if (i + 4 < end && isHex(literal, i + 1, i + 5)) {
+                        value.append((char) Integer.parseInt(literal.substring(i + 1, i + 5), 16));
+                        i += 4;
+                    } else {
+                        value.append(ch);   // not a unicode escape, so as for anything unknown
+                    }
+                    break;
+                default:	// backslash, quotes and anything unknown stand for themselves
+                    value.append(ch);
+            }
+        }
+        return value.toString();
+    }
+
+    /**
+     * @return true if the characters from start to end are all hex digits.
+     */
+    private static boolean isHex(String text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (Character.digit(text.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write a string as a literal which {@link #stringValue(String)} (and the
+     * assembler) will read back as the same string.
+     *
+     * @param value the string.
+     * @return the string in double quotes, with escapes where needed.
+     */
+    public static String stringLiteral(String value) {
+        StringBuilder literal = new StringBuilder(value.length() + 2).append('"');
+        for (char ch : value.toCharArray()) {
+            switch (ch) {
+                case '\n':
+                    literal.append("\\n");
+                    break;
+                case '\t':
+                    literal.append("\\t");
+                    break;
+                case '\r':
+                    literal.append("\\r");
+                    break;
+                case '\b':
+                    literal.append("\\b");
+                    break;
+                case '\f':
+                    literal.append("\\f");
+                    break;
+                case '"':
+                case '\\':
+                    literal.append('\\').append(ch);
+                    break;
+                default:
+                    if (ch < ' ' || ch > '~') {
+                        literal.append(String.format("\\u%04x", (int) ch));
+                    } else {
+                        literal.append(ch);
+                    }
+            }
+        }
+        return literal.append('"').toString();
+    }
+
     static Variable getVar(String varName) {
         Variable var = getVariable(varName);
         if (var == null) {	// doesn't exist!
@@ -179,8 +332,14 @@ public class Code {
 
     public static void increment(String varName, int incDec) {
         Variable v = getVar(varName);
-        if (v.type.isInt()) {
-            emitf("  iinc %s  %d\n", v.toString(), incDec);
+        if (v.type.isInt() && v instanceof Local) {
+            emit("iinc", v.toString() + " " + incDec);
+        } else if (v.type.isInt()) {
+            // a field has no iinc
+            emit(v.getLoad());
+            loadInt(incDec);
+            emit("iadd");
+            emit(v.getStore());
         }else{
             ErrorStream.log("Trying to increment non-int variable\n");
         }
@@ -203,7 +362,7 @@ public class Code {
      *
      */
     public static void setLabel(Label labelName) {
-        emitf("%s:\n", labelName.toString());
+        method().add(new Instruction.Mark(labelName));
     }
 
     /**
@@ -214,7 +373,7 @@ public class Code {
      *
      */
     public static void jump(String jumpOpcode, Label labelName) {
-        emit(jumpOpcode, labelName.toString());
+        method().add(new Instruction.Jump(jumpOpcode, labelName));
     }
 
     /**
@@ -226,7 +385,49 @@ public class Code {
      *
      */
     public static void jump(Token t, Label labelName) {
-        emit(t, labelName.toString());
+        jump(opCode.get(t), labelName);
+    }
+
+    /**
+     * Relation to jump on so that a branch is taken when a test fails.
+     *
+     * @param relation one of LT, LE, GT, GE, EQ, NE.
+     * @return the opposite relation.
+     */
+    public static Token inverse(Token relation) {
+        return inverse.get(relation);
+    }
+
+    /**
+     * Compare the value on the top of the stack with 0 and jump if the
+     * relation holds (e.g. LT gives "iflt").
+     *
+     * @param t relation to test.
+     * @param labelName label descriptor to jump to.
+     */
+    public static void jumpZero(Token t, Label labelName) {
+        jump(opCode.get(t).replace("_icmp", ""), labelName);
+    }
+
+    /**
+     * Jump through a table on the int on the top of the stack.
+     *
+     * @param low value which selects the first label.
+     * @param labels one label for each value from low upwards.
+     * @param defaultLabel label for values outside the table.
+     */
+    public static void tableSwitch(int low, Label[] labels, Label defaultLabel) {
+        method().add(new Instruction.Switch(low, labels, defaultLabel));
+    }
+
+    /**
+     * Jump to the label matching the int on the top of the stack.
+     *
+     * @param cases label for each value, in ascending order of value.
+     * @param defaultLabel label for any other value.
+     */
+    public static void lookupSwitch(SortedMap<Integer, Label> cases, Label defaultLabel) {
+        method().add(new Instruction.Switch(cases, defaultLabel));
     }
 
     /**
@@ -18,8 +18,14 @@ import sal.util.Templater;
 import sal.util.ErrorStream;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -44,6 +50,46 @@ public class CodeGen {
 
     private final static Map<Token, Consumer<Tree<Token>>> actions = new HashMap<>();
 
+    /**
+     * Generate the class for a program: a default constructor and a main
+     * method whose body is the code generated from the AST.
+     *
+     * @param tree AST which forms the program.
+     * @return the class, ready to be printed or written.
+     */
+    public static ClassFile generateProgram(Tree<Token> tree) {
+        ClassFile program = new ClassFile(getGlobal("CLASS NAME"));
+        Method main = program.addMethod("main", "([Ljava/lang/String;)V", Method.PUBLIC | Method.STATIC);
+        // Code needs to know where to put the instructions for all small 'emit' methods below.
+        Code.setMethod(main);
+        // note where each top level statement starts in case main has to be split
+        List<Tree<Token>> statements = tree.token() == STATEMENTLIST ? tree.allChildren() : Collections.singletonList(tree);
+        int[] starts = new int[statements.size() + 1];
+        Map<String, Type> variables = Regions.isEnabled() ? Regions.generate(statements, main, starts) : null;
+        if (variables == null) {
+            // we need an inner scope since code is generated as body of main()
+            beginScope();
+            // invent a mythical first arg
+            newLocal("ARGS TO MAIN", Type.ARRAY_STRING /*"[Ljava.lang.String;"*/);
+            for (int i = 0; i < statements.size(); i++) {
+                starts[i] = main.getCode().size();
+                writeStatementCode(statements.get(i));
+            }
+            starts[statements.size()] = main.getCode().size();
+            variables = variables();
+            endScope();
+        }
+        emit("return");
+        main.setMaxLocals(getGlobal(MAX_LOCAL));
+        if (ErrorStream.errorCount() == 0) {
+            ClassFile parts = Split.split(program.getName(), statements, starts, main, variables);
+            if (parts != null) {
+                return parts;
+            }
+        }
+        return program;
+    }
+
     /**
      * Writes (to the PrintStream provided by CodeWriter) a boilerplate Jasmin
      * program in which is embedded the result of generating code from the AST.
@@ -51,13 +97,20 @@ public class CodeGen {
      * @param tree AST which forms the program.
      */
     public static void writeProgram(PrintStream outputStream, Tree<Token> tree) {
+        writeProgram(outputStream, generateProgram(tree));
+    }
 
-        // Code needs to know the output stream  for all small 'emit' methods below.
-        Code.setOutputStream(outputStream);
+    /**
+     * Writes a generated class as Jasmin assembler.
+     *
+     * @param outputStream where to write the assembler.
+     * @param program the class produced by {@link #generateProgram(Tree)}.
+     */
+    public static void writeProgram(PrintStream outputStream, ClassFile program) {
 
         Templater tr = new Templater(outputStream) {
 
-            String className = getGlobal("CLASS NAME");
+            String className = program.getName();
 
             public void toString(String s) {
 
@@ -67,16 +120,21 @@ public class CodeGen {
                         print(className);
                         return;
 
-                    case "CODE":       // we need an inner scope since code is generated as body of main()
-                        beginScope();
-                        // invent a mythical first arg
-                        newLocal("ARGS TO MAIN", Type.ARRAY_STRING /*"[Ljava.lang.String;"*/);
-                        writeStatementCode(tree);
-                        endScope();
+                    case "INITSTACK":
+                        print(program.getMethods().get(0).maxStack());
                         return;
 
-                    case "LOCALS":      //Integer n = getGlobal(MAX_LOCAL);
-                        print(getGlobal(MAX_LOCAL));
+                    case "FIELDS":
+                        program.getFields().forEach((name, type)
+                                -> printf(".field private static %s %s\n", name, type.getDescriptor()));
+                        return;
+
+                    case "METHODS":
+                        // main, and any parts it was split into
+                        for (Method m : program.getMethods().subList(1, program.getMethods().size())) {
+                            writeMethod(outputStream, m);
+                        }
+                        return;
 
                     default:
                         return;
@@ -89,18 +147,14 @@ public class CodeGen {
         String[] theText = new String[]{
             ".class public (~CLASSNAME~)\n\n",
             ".super java/lang/Object\n",
+            "(~FIELDS~)",
             ".method public <init>()V\n",
-            ".limit stack 10\n",
+            ".limit stack (~INITSTACK~)\n",
             "    aload_0\n",
             "    invokespecial java/lang/Object/<init>()V\n",
             "    return\n",
             ".end method\n",
-            ".method public static main([Ljava/lang/String;)V\n",
-            ".limit stack 10\n",
-            "(~CODE~)",
-            "    return\n",
-            ".limit locals (~LOCALS~)\n",
-            ".end method\n",
+            "(~METHODS~)",
             "\n"};
 
         for (String aLine : theText) {
@@ -108,6 +162,20 @@ public class CodeGen {
         }
     }
 
+    /**
+     * Writes a method as Jasmin assembler.
+     *
+     * @param outputStream where to write the assembler.
+     * @param m the method.
+     */
+    public static void writeMethod(PrintStream outputStream, Method m) {
+        outputStream.printf(".method %s %s%s\n", m.modifiers(), m.getName(), m.getDescriptor());
+        outputStream.printf(".limit stack %d\n", m.maxStack());
+        m.print(outputStream);
+        outputStream.printf(".limit locals %d\n", m.getMaxLocals());
+        outputStream.print(".end method\n");
+    }
+
     public static boolean isStringVar(String name) {
         return getVar(name).type.isString();
     }
@@ -161,10 +229,46 @@ public class CodeGen {
      */
     private static void assign(Tree<Token> tree) {
         Tree<Token> var = tree.child(0);
+        Integer step = step(var.toString(), tree.child(1));
+        if (step != null) {
+            increment(var.toString(), step);	// iinc where it can be
+            return;
+        }
         Type stringExp = writeExpressionCode(tree.child(1));
         store(var.toString(), stringExp);
     }
 
+    /**
+     * The constant added by {@code x = x + c}, {@code x = c + x} or
+     * {@code x = x - c} to an int variable which already exists, if it fits
+     * in an iinc.
+     *
+     * @param name the variable assigned.
+     * @param value the value assigned.
+     * @return the constant, or null if the assignment isn't one of these.
+     */
+    private static Integer step(String name, Tree<Token> value) {
+        Token token = value.token();
+        if ((token != PLUS && token != MINUS) || value.children() != 2) {
+            return null;
+        }
+        Variable v = getVariable(name);
+        if (v == null || !v.type.isInt()) {
+            return null;
+        }
+        Tree<Token> variable = value.child(0);
+        Tree<Token> constant = value.child(1);
+        if (token == PLUS && constant.token() == IDENTIFIER) {
+            variable = constant;
+            constant = value.child(0);
+        }
+        if (variable.token() != IDENTIFIER || !variable.toString().equals(name) || constant.token() != NUMBER) {
+            return null;
+        }
+        long step = token == PLUS ? intValue(constant.toString()) : -(long) intValue(constant.toString());
+        return step >= Byte.MIN_VALUE && step <= Byte.MAX_VALUE ? (int) step : null;
+    }
+
     /**
      * Case RSQ
      *
@@ -185,6 +289,26 @@ public class CodeGen {
         }
     }
 
+    /**
+     * Case ARRAY_FILL and ARRAY_COPY, made from loops by {@link Idioms}: the
+     * library has a version for each type of array.
+     *
+     * @param tree
+     */
+    private static void arrayCall(Tree<Token> tree) {
+        Type array = getVar(tree.child(0).toString()).type;
+        String arrayType = array == Type.ARRAY_STRING ? "[Ljava/lang/String;" : "[I";
+        String elementType = array == Type.ARRAY_STRING ? "Ljava/lang/String;" : "I";
+        for (Tree<Token> child : tree.allChildren()) {
+            writeExpressionCode(child);
+        }
+        if (tree.token() == ARRAY_FILL) {
+            emit("invokestatic", "sal/Library/fill(" + arrayType + "II" + elementType + ")V");
+        } else {
+            emit("invokestatic", "sal/Library/copy(" + arrayType + arrayType + "II)V");
+        }
+    }
+
     /**
      * Case IF
      *
@@ -193,14 +317,18 @@ public class CodeGen {
     private static void ifStatement(Tree<Token> tree) {
         beginScope();	// start a scope to cover the whole if
         Label endIf = newLabel("END IF");  // label for this end-if 
+        if (ifDispatch(tree, endIf)) {
+            setLabel(endIf);
+            endScope();
+            return;
+        }
         int pairs = tree.children();	// (test then code)+
         for (int i = 0; i < pairs; i += 2) {
             Tree<Token> test = tree.child(i);
             Tree<Token> code = tree.child(i + 1);
             if (test != null) {	// not 'else' part
                 Label nextTest = newLabel("NEXT TEST");  // for jump to next elif/else 		
-                writeExpressionCode(test, Type.INT);
-                ifFalse(nextTest);
+                writeConditionCode(test, nextTest);
                 writeStatementCode(code);
                 jump(endIf);
                 setLabel(nextTest);
@@ -224,8 +352,7 @@ public class CodeGen {
         setLabel(continueLabel);	// jump back here for 'continue'
         Tree<Token> testExpr = tree.child(0);
         if (testExpr != null) {		// 'null' for do/end
-            writeExpressionCode(tree.child(0), Type.INT);  		// expression to test  
-            ifFalse(breakLabel);		// if not true, 'break'
+            writeConditionCode(testExpr, breakLabel);  		// if not true, 'break'
         }
         writeStatementCode(tree.child(1)); 		// content of while/do
         jump(continueLabel);		// jump back to beginning
@@ -242,26 +369,235 @@ public class CodeGen {
         beginScope();
         Label endSwitch = newLabel("EXIT SWITCH");
         int pairs = tree.children();
-        Label afterCase = newLabel("AFTER CASE");
+        if (!switchDispatch(tree, endSwitch)) {
+            Label afterCase = newLabel("AFTER CASE");
+            boolean hasDefault = false;
+            for (int i = 0; i < pairs; i += 2) {
+                Tree<Token> test = tree.child(i);
+                Tree<Token> code = tree.child(i + 1);
+                if (test != null) {
+                    Label nextTest = newLabel("NEXT CASE");
+                    writeConditionCode(test, nextTest);
+                    setLabel(afterCase);
+                    afterCase = newLabel("AFTER CASE");
+                    writeStatementCode(code);
+                    jump(afterCase);//Will jump only if no break in statement list
+                    setLabel(nextTest);
+                } else {
+                    hasDefault = true;
+                    setLabel(afterCase);
+                    writeStatementCode(code);
+                }
+            }
+            if (!hasDefault) {
+                setLabel(afterCase);	// last case falls out of the switch
+            }
+        }
+        setLabel(endSwitch);
+        endScope();
+    }
+
+    /**
+     * Compile an 'aiguiller' whose cases are all int or all string constants
+     * as a single jump table. The switched expression is evaluated once, then
+     * the case bodies follow each other so falling through needs no jump.
+     *
+     * @param tree the switch.
+     * @param endSwitch label after the switch.
+     * @return false (and no code written) if the cases are not all constants.
+     */
+    private static boolean switchDispatch(Tree<Token> tree, Label endSwitch) {
+        Tree<Token> scrutinee = null;
+        List<Tree<Token>> values = new ArrayList<>();
+        int pairs = tree.children();
         for (int i = 0; i < pairs; i += 2) {
             Tree<Token> test = tree.child(i);
-            Tree<Token> code = tree.child(i + 1);
-            if (test != null) {
-                Label nextTest = newLabel("NEXT CASE");
-                writeExpressionCode(test);
-                ifFalse(nextTest);
-                setLabel(afterCase);
-                afterCase = newLabel("AFTER CASE");
-                writeStatementCode(code);
-                jump(afterCase);//Will jump only if no break in statement list
-                setLabel(nextTest);
+            if (test == null) {
+                continue;	// default
+            }
+            // every case test shares the switched expression
+            if (test.token() != EQ || (scrutinee != null && test.child(0) != scrutinee)) {
+                return false;
+            }
+            scrutinee = test.child(0);
+            values.add(test.child(1));
+        }
+        if (scrutinee == null || !caseConstants(values)) {
+            return false;
+        }
+        List<Label> targets = new ArrayList<>();
+        Label defaultLabel = endSwitch;
+        for (int i = 0; i < pairs; i += 2) {
+            Label caseLabel = newLabel("CASE");
+            if (tree.child(i) == null) {
+                defaultLabel = caseLabel;
             } else {
-                setLabel(afterCase);
-                writeStatementCode(code);
+                targets.add(caseLabel);
             }
         }
-        setLabel(endSwitch);
-        endScope();
+        writeDispatch(scrutinee, values, targets, defaultLabel);
+        int next = 0;
+        for (int i = 0; i < pairs; i += 2) {
+            setLabel(tree.child(i) == null ? defaultLabel : targets.get(next++));
+            writeStatementCode(tree.child(i + 1));	// falls through to the next case
+        }
+        return true;
+    }
+
+    /**
+     * A sinonsi ladder needs at least this many tests on the same variable to
+     * be worth turning into a jump table.
+     */
+    private static final int MIN_LADDER = 3;
+
+    /**
+     * Compile a 'si .. sinonsi ..' ladder in which every test compares the
+     * same variable with a constant as a jump table.
+     *
+     * @param tree the if statement.
+     * @param endIf label after the if.
+     * @return false (and no code written) if the tests don't fit.
+     */
+    private static boolean ifDispatch(Tree<Token> tree, Label endIf) {
+        String name = null;
+        Tree<Token> scrutinee = null;
+        List<Tree<Token>> values = new ArrayList<>();
+        int pairs = tree.children();
+        for (int i = 0; i < pairs; i += 2) {
+            Tree<Token> test = tree.child(i);
+            if (test == null) {
+                continue;	// 'sinon' is always last
+            }
+            if (test.token() != EQ) {
+                return false;
+            }
+            // accept both 'x == 3' and '3 == x'
+            int side = test.child(0).token() == IDENTIFIER ? 0 : 1;
+            Tree<Token> variable = test.child(side);
+            if (variable.token() != IDENTIFIER || (name != null && !name.equals(variable.toString()))) {
+                return false;
+            }
+            name = variable.toString();
+            scrutinee = variable;
+            values.add(test.child(1 - side));
+        }
+        if (values.size() < MIN_LADDER || !caseConstants(values)) {
+            return false;
+        }
+        List<Label> targets = new ArrayList<>();
+        Label defaultLabel = endIf;
+        for (int i = 0; i < pairs; i += 2) {
+            Label armLabel = newLabel("CASE");
+            if (tree.child(i) == null) {
+                defaultLabel = armLabel;
+            } else {
+                targets.add(armLabel);
+            }
+        }
+        writeDispatch(scrutinee, values, targets, defaultLabel);
+        int next = 0;
+        for (int i = 0; i < pairs; i += 2) {
+            setLabel(tree.child(i) == null ? defaultLabel : targets.get(next++));
+            writeStatementCode(tree.child(i + 1));
+            if (i + 2 < pairs) {
+                jump(endIf);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if all the values are NUMBER leaves or all STRING leaves.
+     */
+    private static boolean caseConstants(List<Tree<Token>> values) {
+        Token kind = values.get(0).token();
+        for (Tree<Token> value : values) {
+            if (!value.isLeaf() || value.token() != kind) {
+                return false;
+            }
+        }
+        return kind == NUMBER || kind == STRING;
+    }
+
+    /**
+     * Evaluate an expression once and jump to the label of the first constant
+     * equal to it, or to the default label. Ints use a tableswitch or
+     * lookupswitch. Strings switch on their hash code, then call equals on the
+     * few constants which share it.
+     *
+     * @param scrutinee the expression tested.
+     * @param values constant NUMBER or STRING leaves.
+     * @param targets label for each value.
+     * @param defaultLabel where to go when no value matches.
+     */
+    private static void writeDispatch(Tree<Token> scrutinee, List<Tree<Token>> values, List<Label> targets, Label defaultLabel) {
+        boolean strings = values.get(0).token() == STRING;
+        // a string variable can be tested in place, anything else is evaluated once
+        boolean inPlace = strings && scrutinee.token() == IDENTIFIER;
+        Type type = inPlace ? getVar(scrutinee.toString()).type : writeExpressionCode(scrutinee);
+        if (type.isString() != strings) {
+            ErrorStream.log(" <%s> == <%s> is illegal.\n", type.isString() ? "string" : "int", strings ? "string" : "int");
+        }
+        if (!strings) {
+            TreeMap<Integer, Label> cases = new TreeMap<>();
+            for (int i = 0; i < values.size(); i++) {
+                cases.putIfAbsent(intValue(values.get(i).toString()), targets.get(i));
+            }
+            writeSwitch(cases, defaultLabel);
+            return;
+        }
+        Variable value;
+        if (inPlace) {
+            value = getVar(scrutinee.toString());
+        } else {
+            value = newLocal("SWITCH VALUE", Type.STRING);
+            emit(value.getStore());
+        }
+        // group the strings by hash code, the first case with a given string wins
+        TreeMap<Integer, Map<String, Label>> buckets = new TreeMap<>();
+        for (int i = 0; i < values.size(); i++) {
+            String literal = values.get(i).toString();
+            buckets.computeIfAbsent(stringValue(literal).hashCode(), h -> new LinkedHashMap<>())
+                    .putIfAbsent(literal, targets.get(i));
+        }
+        TreeMap<Integer, Label> cases = new TreeMap<>();
+        buckets.keySet().forEach(hash -> cases.put(hash, newLabel("HASH")));
+        emit(value.getLoad());
+        emit("invokevirtual", "java/lang/String/hashCode()I");
+        writeSwitch(cases, defaultLabel);
+        buckets.forEach((hash, bucket) -> {
+            setLabel(cases.get(hash));
+            bucket.forEach((literal, target) -> {
+                emit(value.getLoad());
+                emit(STRING, literal);
+                emit("invokevirtual", STRING_EQUALS);
+                ifTrue(target);
+            });
+            jump(defaultLabel);
+        });
+    }
+
+    /**
+     * Choose between tableswitch and lookupswitch for the int on the top of
+     * the stack, weighing space and time the same way javac does.
+     *
+     * @param cases label for each value.
+     * @param defaultLabel label for any other value.
+     */
+    private static void writeSwitch(TreeMap<Integer, Label> cases, Label defaultLabel) {
+        long low = cases.firstKey();
+        long high = cases.lastKey();
+        long tableCost = 4 + (high - low + 1) + 3 * 3;
+        long lookupCost = 3 + 2 * cases.size() + 3 * cases.size();
+        if (tableCost <= lookupCost) {
+            Label[] table = new Label[(int) (high - low + 1)];
+            for (int i = 0; i < table.length; i++) {
+                table[i] = cases.getOrDefault((int) (low + i), defaultLabel);
+            }
+            tableSwitch((int) low, table, defaultLabel);
+        } else {
+            lookupSwitch(cases, defaultLabel);
+        }
     }
 
     /**
@@ -284,8 +620,7 @@ public class CodeGen {
         //!!!!!  in the original version	
         Tree<Token> test = tree.child(0);
         if (test != null) {
-            writeExpressionCode(test, Type.INT);  	// code for test
-            ifFalse(startLabel);		// if test fails jump back to start
+            writeConditionCode(test, startLabel);  	// if test fails jump back to start
         }
         //!!!!!!!!! end of changes
         setLabel(breakLabel);		// or continue here
@@ -359,8 +694,16 @@ public class CodeGen {
         actions.put(READ_STR, CodeGen::readStatement);
         actions.put(PRINT, CodeGen::printStatement);
         actions.put(CONTINUE, CodeGen::continueStatement);
+        actions.put(ARRAY_FILL, CodeGen::arrayCall);
+        actions.put(ARRAY_COPY, CodeGen::arrayCall);
         actions.put(HALT, t -> {
-            emit("return");
+            if (Code.method().getDescriptor().endsWith("Z")) {
+                // a part of a split main tells main to stop
+                loadInt(0);
+                emit("ireturn");
+            } else {
+                emit("return");
+            }
         });
     }
 
@@ -379,6 +722,160 @@ public class CodeGen {
         actions.get(tree.token).accept(tree);
     }
 
+    private static final EnumSet<Token> RELATIONS = EnumSet.of(LE, LT, GE, GT, EQ, NE);
+
+    /**
+     * What {@link #writeComparison(Tree)} leaves on the stack.
+     */
+    private enum Comparison {
+        INTS, // two ints for an if_icmp jump
+        ORDER, // strCmp result to compare with 0
+        EQUALS // String.equals result, 1 when equal
+    }
+
+    static final String STRING_EQUALS = "java/lang/String/equals(Ljava/lang/Object;)Z";
+
+    /**
+     * Write the two sides of a comparison. Strings are tested with
+     * String.equals for == and !=, and ordered with strCmp otherwise.
+     *
+     * @param tree a relational operator with its two operands.
+     * @return the kind of value(s) left to test.
+     */
+    private static Comparison writeComparison(Tree<Token> tree) {
+        Token token = tree.token();
+        Type child0 = writeExpressionCode(tree.child(0));
+        Type child1 = writeExpressionCode(tree.child(1));
+        if (child0.isString()) {
+            if (!child1.isString()) {
+                ErrorStream.log(" <string> %s <int> is illegal.\n", token);
+                return Comparison.INTS;
+            }
+            if (token == EQ || token == NE) {
+                emit("invokevirtual", STRING_EQUALS);
+                return Comparison.EQUALS;
+            }
+            emit(COMPARE_STR);	// compare strings
+            return Comparison.ORDER;
+        }
+        if (child1.isString()) {
+            ErrorStream.log(" <int> %s <string> is illegal.\n", token);
+        }
+        return Comparison.INTS;
+    }
+
+    /**
+     * Generate code for a test which jumps to a label when it is false and
+     * falls through when it is true. A relation becomes a single compare and
+     * jump rather than a 0/1 value which is then tested again.
+     *
+     * @param tree the test.
+     * @param falseLabel where to go when the test fails.
+     */
+    static void writeConditionCode(Tree<Token> tree, Label falseLabel) {
+        Token token = tree.token();
+        if (RELATIONS.contains(token)) {
+            Token jumpOn = inverse(token);
+            switch (writeComparison(tree)) {
+                case EQUALS:
+                    if (token == EQ) {
+                        ifFalse(falseLabel);
+                    } else {
+                        ifTrue(falseLabel);
+                    }
+                    break;
+                case ORDER:
+                    jumpZero(jumpOn, falseLabel);
+                    break;
+                default:
+                    jump(jumpOn, falseLabel);
+            }
+        } else if (token == NUMBER) {	// vrai, faux etc: no test needed
+            if (intValue(tree.toString()) == 0) {
+                jump(falseLabel);
+            }
+        } else {
+            writeExpressionCode(tree, Type.INT);
+            ifFalse(falseLabel);
+        }
+    }
+
+    /**
+     * Work out the type of an expression without generating any code.
+     *
+     * @param tree the expression.
+     * @return the type {@link #writeExpressionCode(Tree)} would return.
+     */
+    static Type expressionType(Tree<Token> tree) {
+        Token token = tree.token();
+        if (tree.children() == 0) {
+            if (token == IDENTIFIER) {
+                Variable var = getVariable(tree.toString());
+                return var == null ? Type.STRING : var.type;
+            }
+            return token == STRING ? Type.STRING : Type.INT;
+        }
+        switch (token) {
+            case QUERY:
+                return expressionType(tree.child(2));
+            case LSQ:
+                return expressionType(tree.child(0)) == Type.ARRAY_STRING ? Type.STRING : Type.INT;
+            case TO_STR:
+                return Type.STRING;
+            case NEW_ARRAY:
+                return tree.child(1).token() == TYPE_STRING ? Type.ARRAY_STRING : Type.ARRAY_INT;
+            case ARRAY_REUSE:
+                return tree.child(2).token() == TYPE_STRING ? Type.ARRAY_STRING : Type.ARRAY_INT;
+            case PLUS:
+                return expressionType(tree.child(0)).isString() || expressionType(tree.child(1)).isString()
+                        ? Type.STRING : Type.INT;
+            case SHL:
+            case SHR:
+                return expressionType(tree.child(0)).isString() ? Type.STRING : Type.INT;
+            default:
+                return Type.INT;
+        }
+    }
+
+    /**
+     * Collect the operands of a chain of string '+'. Int sums inside the chain
+     * (as in {@code "a" + (1 + 2)}) stay as single operands.
+     */
+    private static void concatParts(Tree<Token> tree, List<Tree<Token>> parts) {
+        if (tree.token() == PLUS && expressionType(tree).isString()) {
+            concatParts(tree.child(0), parts);
+            concatParts(tree.child(1), parts);
+        } else {
+            parts.add(tree);
+        }
+    }
+
+    /**
+     * Build a string from a whole chain of '+' at once. Two strings are simply
+     * joined, anything longer goes through one StringBuilder so there is no
+     * intermediate String (or achaine) for each step.
+     *
+     * @param tree a '+' whose type is string.
+     */
+    private static void writeConcatCode(Tree<Token> tree) {
+        List<Tree<Token>> parts = new ArrayList<>();
+        concatParts(tree, parts);
+        if (parts.size() == 2 && expressionType(parts.get(0)).isString() && expressionType(parts.get(1)).isString()) {
+            writeExpressionCode(parts.get(0));
+            writeExpressionCode(parts.get(1));
+            emit(CONCAT);
+            return;
+        }
+        emit("new", "java/lang/StringBuilder");
+        emit("dup");
+        emit("invokespecial", "java/lang/StringBuilder/<init>()V");
+        for (Tree<Token> part : parts) {
+            String argument = writeExpressionCode(part).isString() ? "Ljava/lang/String;" : "I";
+            emit("invokevirtual", "java/lang/StringBuilder/append(" + argument + ")Ljava/lang/StringBuilder;");
+        }
+        emit("invokevirtual", "java/lang/StringBuilder/toString()Ljava/lang/String;");
+    }
+
     public static void writeExpressionCode(Tree<Token> tree, Type needsString) {
         Type expIsString = writeExpressionCode(tree);
         if (needsString != expIsString) {
@@ -395,13 +892,11 @@ public class CodeGen {
             emit(token, tree.toString());
             return (token == NUMBER) ? Type.INT
                     : (token == STRING) ? Type.STRING
-                            : isStringVar(tree) ? Type.STRING
-                            : Type.ARRAY_STRING;
-        } else if (kids == 3) {//turnary
-            writeExpressionCode(tree.child(0));
+                            : getVar(tree.toString()).type;
+        } else if (token == QUERY) {//turnary
             Label endLabel = newLabel("END QUERY");
             Label falseLabel = newLabel("FALSE LABEL");
-            ifFalse(falseLabel);
+            writeConditionCode(tree.child(0), falseLabel);
             writeExpressionCode(tree.child(1));
             jump(endLabel);
             setLabel(falseLabel);
@@ -410,6 +905,46 @@ public class CodeGen {
             return returnType;
         }
 
+        if (token == EQ && expressionType(tree.child(0)).isString()) {
+            writeComparison(tree);	// String.equals already gives 1 or 0
+            return Type.INT;
+        }
+        if (RELATIONS.contains(token)) {
+            // the value is needed (stored, printed...) so turn the test into 1 or 0
+            Label isFalse = newLabel("FALSE VAL");
+            Label endValue = newLabel("END VAL");
+            writeConditionCode(tree, isFalse);
+            emit(ONE);		// for true
+            jump(endValue);
+            setLabel(isFalse);
+            emit(ZERO);		// for false
+            setLabel(endValue);
+            return Type.INT;	// int left on stack
+        }
+
+        if (token == PLUS && expressionType(tree).isString()) {
+            writeConcatCode(tree);
+            return Type.STRING;
+        }
+
+        if (token == ARRAY_REUSE) {
+            // made by Buffers: the library clears the buffer or makes a new one
+            writeExpressionCode(tree.child(0));
+            writeExpressionCode(tree.child(1));
+            if (tree.child(2).token() == TYPE_STRING) {
+                emit("invokestatic", "sal/Library/reuse([Ljava/lang/String;I)[Ljava/lang/String;");
+                return Type.ARRAY_STRING;
+            }
+            emit("invokestatic", "sal/Library/reuse([II)[I");
+            return Type.ARRAY_INT;
+        }
+
+        if (token == ARRAY_SUM || token == ARRAY_MIN || token == ARRAY_MAX) {
+            tree.allChildren().forEach(CodeGen::writeExpressionCode);
+            emit(token);
+            return Type.INT;
+        }
+
         // write code for first child and check type
         if (token == LSQ) {//Load from array
             writeExpressionCode(tree.child(0));
@@ -490,57 +1025,11 @@ public class CodeGen {
         Type child1Type = writeExpressionCode(child1);
 
         switch (token) {
-            case LE:
-            case LT:
-            case GE:
-            case GT:
-            case EQ:
-            case NE: {	// first deal with different types
-                if (child0.isString()) {
-                    if (!child1Type.isString()) {
-                        ErrorStream.log(" <string> %s <int> is illegal.\n", token);
-                    } else {
-                        emit(COMPARE_STR);	// compare strings
-                        emit(ZERO);		// to give compare with 0		
-                    }
-                } else /* child0 is an int */ {
-                    if (child1Type.isString()) {
-                        ErrorStream.log(" <int> %s <string> is illegal.\n", token);
-                    }
-                }
-                // next deal with code to make an int comparison
-                /* if the test is false, the code falls through to the next line
-                       where 0 (i.e.false) is loaded onto the stack. There is then a jump to the end.
-                       The next line is the target when the test was true, -1 (true) is loaded onto the stack
-                 */
-                Label ifTrue = newLabel("TRUE VAL");
-                Label ifFalse = newLabel("FALSE VAL");
-                jump(token, ifTrue);
-                emit(ZERO);		// for false
-                jump(ifFalse);
-                setLabel(ifTrue);
-                emit(ONE);		// for true
-                setLabel(ifFalse);
-            }
-            return Type.INT;	// int left on stack
-
             // String and integer operations
             // !!!!! STRING OPS NOT YET COMPLETE !!!!
-            case PLUS:
-                if (!child0.isString() && !child1Type.isString()) {
-                    emit(PLUS);
-                    return Type.INT;
-                } else {
-                    if (!child0.isString()) {
-                        emit(SWAP);
-                        emit(TO_STR);
-                        emit(SWAP);
-                    } else if (!child1Type.isString()) {
-                        emit(TO_STR);
-                    }
-                    emit(CONCAT);
-                    return Type.STRING;
-                }
+            case PLUS:	// string '+' was handled by writeConcatCode
+                emit(PLUS);
+                return Type.INT;
             case SHL:
             case SHR:
                 if (child1Type.isString()) {
@@ -560,6 +1049,7 @@ public class CodeGen {
             case MOD:
             case MINIMUM:
             case MAXIMUM:
+            case BIT_AND:
             case SHRS: {
                 emit(token);
             }
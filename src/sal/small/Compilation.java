@@ -0,0 +1,143 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package sal.small;
+
+import sal.util.ErrorStream;
+import sal.util.Lexer;
+
+import java.io.PrintStream;
+
+/**
+ * Everything the compiler changes while compiling one program: the lexer,
+ * the scopes, the label numbers, the method being generated and where the
+ * error messages go.
+ *
+ * The parser and code generator reach it through static methods
+ * ({@link Token#scan()}, {@link Scope#beginScope()}, {@link Code#emit(String)}
+ * ...), which use the compilation current on their thread. So two programs
+ * can be compiled at once on different threads, and one compilation can be
+ * started in the middle of another on the same thread:
+ *
+ * <pre>
+ * try (Compilation compilation = Compilation.begin(fileName, System.err)) {
+ *     ...
+ * }
+ * </pre>
+ *
+ * A thread which never begins one gets one of its own when it first needs
+ * it. The options (-O0, -split...) are set before any compilation starts and
+ * are shared.
+ *
+ * @author Simon
+ * @author Azarias
+ */
+public class Compilation implements AutoCloseable {
+
+    private static final ThreadLocal<Compilation> current = ThreadLocal.withInitial(() -> new Compilation("", System.err));
+
+    private Lexer<Token> lexer;
+
+    /**
+     * Values for the whole program, such as the class name: not on the chain
+     * of scopes searched for names.
+     */
+    final Scope globalScope;
+    Scope currentScope;
+
+    /**
+     * While a program is streamed, the scope of the variables made fields:
+     * the statements are compiled in the scope just inside it.
+     */
+    Scope fields;
+
+    /**
+     * Number for the next label, so every label of the class is different.
+     */
+    int nextLabel = 0;
+
+    /**
+     * The method instructions are added to.
+     */
+    Method method;
+
+    private final ErrorStream.Sink diagnostics;
+    private Compilation outer;
+    private ErrorStream.Sink outerDiagnostics;
+
+    private Compilation(String source, PrintStream err) {
+        diagnostics = new ErrorStream.Sink(err, source);
+        globalScope = new Scope(this);
+        currentScope = null;
+    }
+
+    /**
+     * Start a compilation on this thread. Until it is closed everything the
+     * compiler does on the thread belongs to it.
+     *
+     * @param source name of the program, for error messages.
+     * @param err where error messages go.
+     * @return the compilation, to be closed when done.
+     */
+    public static Compilation begin(String source, PrintStream err) {
+        return new Compilation(source, err).resume();
+    }
+
+    /**
+     * Carry on with a compilation, perhaps on another thread than the one it
+     * was begun on (one thread at a time).
+     *
+     * @return the compilation, to be closed when done.
+     */
+    public Compilation resume() {
+        outer = current.get();
+        current.set(this);
+        outerDiagnostics = ErrorStream.use(diagnostics);
+        return this;
+    }
+
+    /**
+     * @return the compilation running on this thread.
+     */
+    static Compilation current() {
+        return current.get();
+    }
+
+    /**
+     * The lexer, made the first time it is needed: the token patterns are
+     * compiled once, but each lexer has its own matchers.
+     */
+    Lexer<Token> lexer() {
+        if (lexer == null) {
+            lexer = Token.newLexer();
+        }
+        return lexer;
+    }
+
+    /**
+     * @return the number of errors found so far.
+     */
+    public int errorCount() {
+        return diagnostics.errorCount();
+    }
+
+    /**
+     * Go back to the compilation this one was begun or resumed in.
+     */
+    @Override
+    public void close() {
+        current.set(outer);
+        ErrorStream.use(outerDiagnostics);
+    }
+}
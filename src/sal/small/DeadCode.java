@@ -0,0 +1,305 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package sal.small;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static sal.small.Code.*;
+import static sal.small.Token.*;
+import static sal.small.Tree.*;
+
+/**
+ * Remove code which can never run and assignments whose value is never used.
+ *
+ * Statements after 'arreter', 'rompre' or 'continuer' (or after an if all
+ * of whose branches end that way) are dropped, as are branches of 'si' and
+ * 'tantque' whose test is a constant. An assignment is dropped when its
+ * variable is never read, or when the next thing to happen to the variable
+ * in the same statement list is another assignment - as long as working out
+ * the value has no effect of its own (such as dividing by zero or indexing
+ * an array).
+ *
+ * @author Simon
+ * @author Azarias
+ */
+public class DeadCode {
+
+    private final Types types;
+
+    /**
+     * Variables read somewhere in the program.
+     */
+    private final Set<String> read = new HashSet<>();
+
+    private DeadCode(Tree<Token> program) {
+        types = new Types(program);
+    }
+
+    /**
+     * Remove the dead code from a program.
+     *
+     * @param tree AST of the program.
+     * @return the program without dead code (changed in place).
+     */
+    public static Tree<Token> program(Tree<Token> tree) {
+        DeadCode dead = new DeadCode(tree);
+        dead.statement(tree);
+        // removing a store can leave another variable unread
+        boolean changed;
+        do {
+            dead.read.clear();
+            dead.reads(tree, null);
+            changed = dead.stores(tree);
+        } while (changed);
+        return tree;
+    }
+
+    /**
+     * True if control never goes on to the statement after this one.
+     */
+    static boolean terminates(Tree<Token> tree) {
+        if (tree == null) {
+            return false;
+        }
+        switch (tree.token()) {
+            case HALT:
+            case BREAK:
+            case CONTINUE:
+                return true;
+            case STATEMENTLIST:
+            case BLOCK:
+                return tree.children() > 0 && terminates(tree.child(tree.children() - 1));
+            case IF: {
+                boolean hasElse = false;
+                for (int i = 0; i < tree.children(); i += 2) {
+                    hasElse |= tree.child(i) == null;
+                    if (!terminates(tree.child(i + 1))) {
+                        return false;
+                    }
+                }
+                return hasElse;
+            }
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Remove unreachable statements and constant branches.
+     *
+     * @return the statement to use instead, null to remove it.
+     */
+    private Tree<Token> statement(Tree<Token> tree) {
+        if (tree == null || tree.isLeaf()) {
+            return tree;
+        }
+        switch (tree.token()) {
+            case STATEMENTLIST:
+            case BLOCK: {
+                List<Tree<Token>> kept = new ArrayList<>();
+                for (Tree<Token> child : tree.allChildren()) {
+                    Tree<Token> s = statement(child);
+                    if (s != null) {
+                        kept.add(s);
+                        if (terminates(s)) {
+                            break;	// the rest can't be reached
+                        }
+                    }
+                }
+                tree.allChildren().clear();
+                tree.allChildren().addAll(kept);
+                return tree;
+            }
+            case IF:
+                return ifStatement(tree);
+            case WHILE:
+                if (tree.child(0) != null && tree.child(0).token() == NUMBER && intValue(tree.child(0).toString()) == 0) {
+                    return null;
+                }
+                tree.child(1, statement(tree.child(1)));
+                return tree;
+            case UNTIL:
+                tree.child(1, statement(tree.child(1)));
+                return tree;
+            case SWITCH:
+                for (int i = 1; i < tree.children(); i += 2) {
+                    tree.child(i, statement(tree.child(i)));
+                }
+                return tree;
+            default:
+                return tree;
+        }
+    }
+
+    /**
+     * Drop the branches of an if whose tests are constant.
+     */
+    private Tree<Token> ifStatement(Tree<Token> tree) {
+        Tree<Token> result = list(IF);
+        for (int i = 0; i < tree.children(); i += 2) {
+            Tree<Token> test = tree.child(i);
+            Tree<Token> body = statement(tree.child(i + 1));
+            if (test != null && test.token() == NUMBER) {
+                if (intValue(test.toString()) == 0) {
+                    continue;	// never taken
+                }
+                test = null;	// always taken: it is the 'sinon'
+            }
+            result.addChild(test);
+            result.addChild(body);
+            if (test == null) {
+                break;	// nothing after the 'sinon' can be reached
+            }
+        }
+        if (result.children() == 0) {
+            return list(STATEMENTLIST);
+        }
+        if (result.child(0) == null) {
+            // the first branch is always taken, it still needs a scope of its own
+            Tree<Token> block = list(BLOCK);
+            result.child(1).allChildren().forEach(block::addChild);
+            return block;
+        }
+        return result;
+    }
+
+    /**
+     * Note the variables an expression or statement reads.
+     *
+     * @param assigned variable being assigned by the enclosing statement,
+     * whose own reads of it don't count.
+     */
+    private void reads(Tree<Token> tree, String assigned) {
+        if (tree == null) {
+            return;
+        }
+        if (tree.isLeaf()) {
+            if (tree.token() == IDENTIFIER && !tree.toString().equals(assigned)) {
+                read.add(tree.toString());
+            }
+            return;
+        }
+        switch (tree.token()) {
+            case ASSIGN:
+                // an assignment which stays reads its own variable too
+                reads(tree.child(1), removable(tree) ? tree.child(0).toString() : null);
+                return;
+            case INCREMENT:
+            case DECREMENT:
+                return;
+            default:
+                tree.allChildren().forEach(child -> reads(child, assigned));
+        }
+    }
+
+    /**
+     * True if a statement is an assignment which can be removed without
+     * changing anything but the variable.
+     */
+    private boolean removable(Tree<Token> tree) {
+        switch (tree.token()) {
+            case ASSIGN:
+                return types.variable(tree.child(0).toString()) != null && types.safe(tree.child(1));
+            case INCREMENT:
+            case DECREMENT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * True if a name occurs anywhere in a tree.
+     */
+    private static boolean mentions(Tree<Token> tree, String name) {
+        if (tree == null) {
+            return false;
+        }
+        if (tree.isLeaf()) {
+            return (tree.token() == IDENTIFIER || tree.token() == READ_STR) && tree.toString().equals(name);
+        }
+        return tree.allChildren().stream().anyMatch(child -> mentions(child, name));
+    }
+
+    /**
+     * True if control can leave a statement other than by going on to the
+     * next one.
+     */
+    private static boolean leaves(Tree<Token> tree) {
+        if (tree == null) {
+            return false;
+        }
+        switch (tree.token()) {
+            case HALT:
+            case BREAK:
+            case CONTINUE:
+                return true;
+            default:
+                return !tree.isLeaf() && tree.allChildren().stream().anyMatch(DeadCode::leaves);
+        }
+    }
+
+    /**
+     * True if the value an assignment in a statement list stores is replaced
+     * before anything could read it.
+     */
+    private static boolean overwritten(List<Tree<Token>> statements, int at, String name) {
+        for (int i = at + 1; i < statements.size(); i++) {
+            Tree<Token> next = statements.get(i);
+            if (next == null) {
+                return false;
+            }
+            if (next.token() == ASSIGN && next.child(0).toString().equals(name)) {
+                return !mentions(next.child(1), name);
+            }
+            if (leaves(next) || mentions(next, name)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove dead assignments.
+     *
+     * @return true if anything was removed.
+     */
+    private boolean stores(Tree<Token> tree) {
+        if (tree == null || tree.isLeaf()) {
+            return false;
+        }
+        boolean changed = false;
+        List<Tree<Token>> children = tree.allChildren();
+        if (tree.token() == STATEMENTLIST || tree.token() == BLOCK) {
+            for (int i = 0; i < children.size(); i++) {
+                Tree<Token> s = children.get(i);
+                if (s != null && removable(s)) {
+                    String name = s.child(0).toString();
+                    if (!read.contains(name) || s.token() == ASSIGN && overwritten(children, i, name)) {
+                        children.remove(i--);
+                        changed = true;
+                    }
+                }
+            }
+        }
+        for (Tree<Token> child : children) {
+            changed |= stores(child);
+        }
+        return changed;
+    }
+}
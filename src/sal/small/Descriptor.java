@@ -76,11 +76,9 @@ public class Descriptor {
      */
     public static class Label extends Value<String> {
 
-        static int nextSuffix = 0;
-
         public Label(String name) {
-
-            super(String.format("%s#%d", name, nextSuffix++));
+            // numbered by the compilation, so labels are only unique in one class
+            super(String.format("%s#%d", name, Compilation.current().nextLabel++));
         }
 
         public Label() {
@@ -179,15 +177,28 @@ public class Descriptor {
             return prefix;
         }
 
-        // by default this does getstatic
+        public int getSlot() {
+            return Integer.parseInt(this.toString());
+        }
+
+        /**
+         * Slots 0-3 have their own one byte opcodes (iload_0, astore_3...),
+         * anything above uses the operand form. The assembler adds the 'wide'
+         * prefix itself for slots which don't fit in a byte.
+         */
+        private String access(String operation) {
+            int slot = getSlot();
+            return String.format(slot <= 3 ? "%s%s_%d" : "%s%s %d", this.prefix, operation, slot);
+        }
+
         @Override
         public String getLoad() {
-            return String.format("%sload %s", this.prefix, this.toString());
+            return access("load");
         }
 
         @Override
         public String getStore() {
-            return String.format("%sstore %s", this.prefix, this.toString());
+            return access("store");
         }
 
     }
@@ -210,12 +221,12 @@ public class Descriptor {
         // by default this does getstatic
         @Override
         public String getLoad() {
-            return String.format("getstatic %s %s", this.toString(), this.type.getCode());
+            return String.format("getstatic %s %s", this.toString(), this.type.getDescriptor());
         }
 
         @Override
         public String getStore() {
-            return String.format("putstatic %s %s", this.toString(), this.type.getCode());
+            return String.format("putstatic %s %s", this.toString(), this.type.getDescriptor());
         }
 
     }
@@ -0,0 +1,431 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package sal.small;
+
+import sal.Library;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static sal.small.Code.*;
+import static sal.small.Token.*;
+import static sal.small.Tree.*;
+
+/**
+ * Work out constant expressions at compile time.
+ *
+ * Expressions whose operands are all constants become a single NUMBER or
+ * STRING leaf, a variable given a constant once (and never changed) is
+ * replaced by that constant, and multiplying, dividing and taking the
+ * remainder by powers of two become shifts and masks where that gives the
+ * same answer. String operations are worked out by {@link Library} itself so
+ * the result is exactly what the program would have got.
+ *
+ * Nothing which could fail at run time (division by zero, a bad substring) is
+ * folded.
+ *
+ * @author Simon
+ * @author Azarias
+ */
+public class Fold {
+
+    private static final EnumSet<Token> RELATIONS = EnumSet.of(LE, LT, GE, GT, EQ, NE);
+
+    private final Types types;
+
+    /**
+     * Variables known to hold a constant, and the constant.
+     */
+    private final Map<String, Tree<Token>> constants = new HashMap<>();
+
+    private Fold(Tree<Token> program) {
+        types = new Types(program);
+    }
+
+    /**
+     * Fold the constants in a program.
+     *
+     * @param tree AST of the program.
+     * @return the program with constants folded (changed in place).
+     */
+    public static Tree<Token> program(Tree<Token> tree) {
+        new Fold(tree).statement(tree);
+        return tree;
+    }
+
+    /**
+     * Type of an expression, null if it isn't certain.
+     */
+    private Type type(Tree<Token> tree) {
+        return types.type(tree);
+    }
+
+    /**
+     * Fold the expressions in a statement.
+     */
+    private void statement(Tree<Token> tree) {
+        if (tree == null || tree.isLeaf()) {
+            return;
+        }
+        switch (tree.token()) {
+            case ASSIGN: {
+                Tree<Token> value = expression(tree.child(1));
+                tree.child(1, value);
+                String name = tree.child(0).toString();
+                if (isConstant(value) && types.assignments(name) == 1) {
+                    constants.put(name, value);
+                }
+                return;
+            }
+            case RSQ:
+                tree.child(1, expression(tree.child(1)));
+                tree.child(2, expression(tree.child(2)));
+                return;
+            case PRINT:
+                tree.child(0, expression(tree.child(0)));
+                return;
+            case IF:
+            case WHILE:
+            case UNTIL:
+                // tests and statement lists, tests may be missing
+                for (int i = 0; i < tree.children(); i++) {
+                    Tree<Token> child = tree.child(i);
+                    if (child != null && child.token() != STATEMENTLIST) {
+                        tree.child(i, expression(child));
+                    } else {
+                        statement(child);
+                    }
+                }
+                return;
+            case SWITCH:
+            // the tests are 'exp == case' sharing one exp, which must stay shared
+            {
+                Tree<Token> shared = null;
+                Tree<Token> folded = null;
+                for (int i = 0; i < tree.children(); i += 2) {
+                    Tree<Token> test = tree.child(i);
+                    if (test != null) {
+                        if (test.child(0) != shared) {
+                            shared = test.child(0);
+                            folded = expression(shared);
+                        }
+                        test.child(0, folded);
+                        test.child(1, expression(test.child(1)));
+                    }
+                    statement(tree.child(i + 1));
+                }
+                return;
+            }
+            case INCREMENT:
+            case DECREMENT:
+                return;
+            default:
+                tree.allChildren().forEach(this::statement);
+        }
+    }
+
+    static boolean isConstant(Tree<Token> tree) {
+        return tree != null && (tree.token() == NUMBER || tree.token() == STRING);
+    }
+
+    static Tree<Token> number(int value) {
+        return leaf(NUMBER, Integer.toString(value));
+    }
+
+    private static Tree<Token> string(String value) {
+        return leaf(STRING, stringLiteral(value));
+    }
+
+    /**
+     * @return the value of a constant as it would be printed or joined.
+     */
+    private static String text(Tree<Token> constant) {
+        return constant.token() == STRING ? stringValue(constant.toString()) : Integer.toString(intValue(constant.toString()));
+    }
+
+    /**
+     * @return k if value is 2 to the power k (k > 0), otherwise -1.
+     */
+    private static int log2(int value) {
+        return value > 1 && Integer.bitCount(value) == 1 ? Integer.numberOfTrailingZeros(value) : -1;
+    }
+
+    /**
+     * True if an expression is certainly not negative.
+     */
+    private static boolean notNegative(Tree<Token> tree) {
+        switch (tree.token()) {
+            case NUMBER:
+                return intValue(tree.toString()) >= 0;
+            case LENGTH:
+            case BIT_AND:
+                return true;
+            case SHR:	// unsigned shift
+                return isConstant(tree.child(1)) && (intValue(tree.child(1).toString()) & 31) != 0;
+            case DIVIDE:
+            case MOD:
+            case SHRS:
+                return notNegative(tree.child(0)) && notNegative(tree.child(1));
+            default:
+                return RELATIONS.contains(tree.token());
+        }
+    }
+
+    /**
+     * Fold an expression.
+     *
+     * @param tree the expression.
+     * @return the folded expression, which may be tree changed in place.
+     */
+    Tree<Token> expression(Tree<Token> tree) {
+        if (tree == null) {
+            return null;
+        }
+        Token token = tree.token();
+        if (tree.isLeaf()) {
+            Tree<Token> constant = token == IDENTIFIER ? constants.get(tree.toString()) : null;
+            return constant == null ? tree : constant;
+        }
+        if (token == LSQ) {	// the array itself is a name, not a value
+            tree.child(1, expression(tree.child(1)));
+            return tree;
+        }
+        if (token == NEW_ARRAY) {
+            tree.child(0, expression(tree.child(0)));
+            return tree;
+        }
+        if (token == PLUS && type(tree) == Type.STRING) {
+            return concatenation(tree);
+        }
+        for (int i = 0; i < tree.children(); i++) {
+            tree.child(i, expression(tree.child(i)));
+        }
+        if (token == QUERY) {
+            Tree<Token> test = tree.child(0);
+            return test.token() == NUMBER ? tree.child(intValue(test.toString()) != 0 ? 1 : 2) : tree;
+        }
+        if (tree.children() == 1) {
+            return unary(tree);
+        }
+        Tree<Token> left = tree.child(0);
+        Tree<Token> right = tree.child(1);
+        if (left.token() == NUMBER && right.token() == NUMBER) {
+            Tree<Token> value = ints(token, intValue(left.toString()), intValue(right.toString()));
+            return value == null ? tree : value;
+        }
+        if (left.token() == STRING && right.token() == STRING && RELATIONS.contains(token)) {
+            int order = stringValue(left.toString()).compareTo(stringValue(right.toString()));
+            return number(compare(token, Integer.signum(order), 0) ? 1 : 0);
+        }
+        if (left.token() == STRING && right.token() == NUMBER && (token == SHL || token == SHR)) {
+            try {
+                String s = stringValue(left.toString());
+                int n = intValue(right.toString());
+                return string(token == SHL ? Library.left(s, n) : Library.right(s, n));
+            } catch (RuntimeException e) {
+                return tree;	// leave the program to fail when it runs
+            }
+        }
+        return reduce(tree);
+    }
+
+    /**
+     * Fold a unary operator applied to a constant.
+     */
+    private static Tree<Token> unary(Tree<Token> tree) {
+        Tree<Token> operand = tree.child(0);
+        switch (tree.token()) {
+            case NEGATE:
+                return operand.token() == NUMBER ? number(-intValue(operand.toString())) : tree;
+            case TO_STR:
+                return operand.token() == NUMBER ? string(Library.toStr(intValue(operand.toString()))) : tree;
+            case TO_INT:
+                return operand.token() == STRING ? number(Library.toInt(stringValue(operand.toString()))) : tree;
+            case LENGTH:
+                return operand.token() == STRING ? number(Library.len(stringValue(operand.toString()))) : tree;
+            default:
+                return tree;
+        }
+    }
+
+    private static boolean compare(Token relation, int a, int b) {
+        switch (relation) {
+            case LT:
+                return a < b;
+            case LE:
+                return a <= b;
+            case GT:
+                return a > b;
+            case GE:
+                return a >= b;
+            case EQ:
+                return a == b;
+            default:
+                return a != b;
+        }
+    }
+
+    /**
+     * Work out an operator on two int constants.
+     *
+     * @return the value, or null if it can't be done at compile time.
+     */
+    private static Tree<Token> ints(Token token, int a, int b) {
+        switch (token) {
+            case PLUS:
+                return number(a + b);
+            case MINUS:
+                return number(a - b);
+            case TIMES:
+                return number(a * b);
+            case DIVIDE:
+                return b == 0 ? null : number(a / b);
+            case MOD:
+                return b == 0 ? null : number(a % b);
+            case SHL:
+                return number(a << b);
+            case SHR:	// iushr
+                return number(a >>> b);
+            case SHRS:	// ishr
+                return number(a >> b);
+            case BIT_AND:
+                return number(a & b);
+            default:
+                return RELATIONS.contains(token) ? number(compare(token, a, b) ? 1 : 0) : null;
+        }
+    }
+
+    /**
+     * Replace arithmetic with cheaper operations which give the same result.
+     */
+    private Tree<Token> reduce(Tree<Token> tree) {
+        Token token = tree.token();
+        Tree<Token> left = tree.child(0);
+        Tree<Token> right = tree.child(1);
+        int constant = right.token() == NUMBER ? intValue(right.toString()) : 0;
+        boolean intLeft = type(left) == Type.INT;
+        switch (token) {
+            case TIMES:
+                if (left.token() == NUMBER && right.token() != NUMBER) {
+                    return reduce(list(TIMES, right, left));
+                }
+                if (right.token() == NUMBER && intLeft) {
+                    if (constant == 1) {
+                        return left;
+                    }
+                    if (log2(constant) > 0) {
+                        return list(SHL, left, number(log2(constant)));
+                    }
+                }
+                return tree;
+            case DIVIDE:
+                if (right.token() == NUMBER && intLeft) {
+                    if (constant == 1) {
+                        return left;
+                    }
+                    // a shift rounds down, division rounds towards zero
+                    if (log2(constant) > 0 && notNegative(left)) {
+                        return list(SHRS, left, number(log2(constant)));
+                    }
+                }
+                return tree;
+            case MOD:
+                if (right.token() == NUMBER && intLeft && log2(constant) > 0 && notNegative(left)) {
+                    return list(BIT_AND, left, number(constant - 1));
+                }
+                return tree;
+            case EQ:
+            case NE:
+                // x % 2^k == 0 whatever the sign of x, if and only if its low bits are 0
+                if (right.token() == NUMBER && constant == 0 && left.token() == MOD
+                        && left.child(1).token() == NUMBER && log2(intValue(left.child(1).toString())) > 0
+                        && type(left.child(0)) == Type.INT) {
+                    int mask = intValue(left.child(1).toString()) - 1;
+                    tree.child(0, list(BIT_AND, left.child(0), number(mask)));
+                }
+                return tree;
+            case PLUS:
+                if (left.token() == NUMBER && intValue(left.toString()) == 0 && type(right) == Type.INT) {
+                    return right;
+                }
+            // fall through: x + 0
+            case MINUS:
+            case SHL:
+            case SHR:
+            case SHRS:
+                return right.token() == NUMBER && constant == 0 && intLeft ? left : tree;
+            default:
+                return tree;
+        }
+    }
+
+    /**
+     * Collect the operands of a chain of string '+', as code generation will.
+     * The operands of a '+' on the right are only taken apart once there is
+     * a string before them: 1 + (2 + "a") is "12a", not "3a".
+     */
+    private void concatParts(Tree<Token> tree, List<Tree<Token>> parts) {
+        if (tree.token() == PLUS && type(tree) == Type.STRING) {
+            concatParts(tree.child(0), parts);
+            if (parts.stream().anyMatch(this::isString)) {
+                concatParts(tree.child(1), parts);
+            } else {
+                parts.add(expression(tree.child(1)));
+            }
+        } else {
+            parts.add(expression(tree));
+        }
+    }
+
+    private boolean isString(Tree<Token> tree) {
+        return type(tree) == Type.STRING;
+    }
+
+    /**
+     * Join neighbouring constants in a chain of string '+'.
+     */
+    private Tree<Token> concatenation(Tree<Token> tree) {
+        List<Tree<Token>> parts = new ArrayList<>();
+        concatParts(tree, parts);
+        List<Tree<Token>> joined = new ArrayList<>();
+        boolean string = false;     // the operands so far make a string
+        for (int i = 0; i < parts.size(); i++) {
+            Tree<Token> part = parts.get(i);
+            int end = i;
+            while (end + 1 < parts.size() && isConstant(part) && isConstant(parts.get(end + 1))) {
+                end++;
+            }
+            // constants are only joined if each is added to a string
+            if (end > i && (string || isString(part) || i == 0 && isString(parts.get(1)))) {
+                StringBuilder text = new StringBuilder();
+                for (int j = i; j <= end; j++) {
+                    text.append(text(parts.get(j)));
+                }
+                part = string(text.toString());
+                i = end;
+            }
+            string = string || isString(part);
+            joined.add(part);
+        }
+        Tree<Token> result = joined.get(0);
+        for (int i = 1; i < joined.size(); i++) {
+            result = list(PLUS, result, joined.get(i));
+        }
+        return result;
+    }
+}
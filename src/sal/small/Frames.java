@@ -0,0 +1,315 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package sal.small;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+import static sal.small.Descriptor.*;
+
+/**
+ * The types held in the local variables and on the operand stack before each
+ * instruction of a method. Class files from Java 7 on must carry these as a
+ * StackMapTable at every jump target so the (fast) split verifier can check
+ * each instruction once instead of inferring the types itself.
+ *
+ * Types are written as field descriptors ("I", "Ljava/lang/String;", "[I"),
+ * with {@link #TOP} for a slot holding nothing usable and "U" followed by an
+ * instruction index for an object made by that 'new' but not yet initialised.
+ *
+ * @author Simon
+ * @author Azarias
+ */
+class Frames {
+
+    static final String TOP = "T";
+    static final String INT = "I";
+
+    /**
+     * The state before one instruction.
+     */
+    static class Frame {
+
+        final String[] locals;
+        final List<String> stack;
+
+        Frame(String[] locals, List<String> stack) {
+            this.locals = locals;
+            this.stack = stack;
+        }
+
+        Frame copy() {
+            return new Frame(locals.clone(), new ArrayList<>(stack));
+        }
+
+        /**
+         * Combine with the state reached along another path. A local which
+         * differs between the two can't be used after the join.
+         *
+         * @return true if this frame changed.
+         */
+        boolean merge(Frame other) {
+            boolean changed = false;
+            for (int i = 0; i < locals.length; i++) {
+                if (!locals[i].equals(other.locals[i]) && !locals[i].equals(TOP)) {
+                    locals[i] = TOP;
+                    changed = true;
+                }
+            }
+            for (int i = 0; i < stack.size() && i < other.stack.size(); i++) {
+                if (!stack.get(i).equals(other.stack.get(i)) && !stack.get(i).equals(TOP)) {
+                    stack.set(i, TOP);
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+    }
+
+    private final Method method;
+    private final Frame[] before;
+
+    /**
+     * Work out the frames by following every path through the code,
+     * revisiting a join whenever a new path changes what is known there.
+     *
+     * @param method the method.
+     * @param className the class it belongs to, the type of 'this'.
+     */
+    Frames(Method method, String className) {
+        this.method = method;
+        List<Instruction> code = method.code;
+        before = new Frame[code.size() + 1];
+        Map<Label, Integer> labels = method.labelIndex();
+
+        before[0] = initial(method, className);
+        Deque<Integer> work = new ArrayDeque<>();
+        work.push(0);
+        while (!work.isEmpty()) {
+            int i = work.pop();
+            if (i >= code.size()) {
+                continue;
+            }
+            Instruction ins = code.get(i);
+            Frame after = before[i].copy();
+            step(ins, i, after);
+            List<Integer> next = new ArrayList<>();
+            for (Label target : Method.targets(ins)) {
+                Integer t = labels.get(target);
+                if (t != null) {
+                    next.add(t);
+                }
+            }
+            if (ins.opcode == null || !ins.opcode.endsBlock()) {
+                next.add(i + 1);
+            }
+            for (int n : next) {
+                if (before[n] == null) {
+                    before[n] = after.copy();
+                    work.push(n);
+                } else if (before[n].merge(after)) {
+                    work.push(n);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the state before instruction i, or null if it can't be reached.
+     */
+    Frame at(int i) {
+        return before[i];
+    }
+
+    boolean reached(int i) {
+        return before[i] != null;
+    }
+
+    /**
+     * Locals on entry: the arguments, then nothing.
+     */
+    private static Frame initial(Method method, String className) {
+        String[] locals = new String[method.maxLocals()];
+        Arrays.fill(locals, TOP);
+        int slot = 0;
+        if ((method.access & Method.STATIC) == 0) {
+            locals[slot++] = "L" + ClassFile.internal(className) + ";";
+        }
+        for (String type : argumentTypes(method.descriptor)) {
+            locals[slot++] = type(type);
+        }
+        return new Frame(locals, new ArrayList<>());
+    }
+
+    /**
+     * Split the argument part of a method descriptor into types.
+     *
+     * @param descriptor e.g. "(I[Ljava/lang/String;)V".
+     * @return the type of each argument.
+     */
+    static List<String> argumentTypes(String descriptor) {
+        descriptor = ClassFile.internal(descriptor);
+        List<String> types = new ArrayList<>();
+        int i = descriptor.indexOf('(') + 1;
+        int end = descriptor.indexOf(')');
+        while (i < end) {
+            int start = i;
+            while (descriptor.charAt(i) == '[') {
+                i++;
+            }
+            if (descriptor.charAt(i) == 'L') {
+                i = descriptor.indexOf(';', i);
+            }
+            types.add(descriptor.substring(start, ++i));
+        }
+        return types;
+    }
+
+    /**
+     * Normalise a type as written by the code generator: "java/lang/String"
+     * and "Ljava.lang.String;" both become "Ljava/lang/String;". A boolean,
+     * byte, char or short is an int as far as the verifier is concerned.
+     */
+    static String type(String code) {
+        code = ClassFile.internal(code.trim());
+        if (code.length() == 1 && "ZBCSI".contains(code)) {
+            return INT;
+        }
+        if (code.length() == 1 || code.startsWith("[") || code.startsWith("L") && code.endsWith(";")) {
+            return code;
+        }
+        return "L" + code + ";";
+    }
+
+    private static String pop(Frame f) {
+        return f.stack.remove(f.stack.size() - 1);
+    }
+
+    private static void pop(Frame f, int words) {
+        for (int i = 0; i < words; i++) {
+            pop(f);
+        }
+    }
+
+    /**
+     * Apply one instruction to a frame.
+     *
+     * @param ins the instruction.
+     * @param index its position in the code (names uninitialised objects).
+     * @param f the state before, changed into the state after.
+     */
+    private void step(Instruction ins, int index, Frame f) {
+        Opcode op = ins.opcode;
+        if (op == null) {
+            return;
+        }
+        List<String> stack = f.stack;
+        switch (op) {
+            case LDC:
+            case LDC_W:
+                stack.add(ins.operand.startsWith("\"") ? "Ljava/lang/String;" : INT);
+                return;
+            case ACONST_NULL:
+                stack.add("Ljava/lang/Object;");
+                return;
+            case ALOAD:
+            case ALOAD_0:
+            case ALOAD_1:
+            case ALOAD_2:
+            case ALOAD_3:
+                stack.add(f.locals[ins.slot()]);
+                return;
+            case AALOAD: {
+                pop(f);
+                String array = pop(f);
+                stack.add(array.startsWith("[") ? array.substring(1) : TOP);
+                return;
+            }
+            case ISTORE:
+            case ISTORE_0:
+            case ISTORE_1:
+            case ISTORE_2:
+            case ISTORE_3:
+            case ASTORE:
+            case ASTORE_0:
+            case ASTORE_1:
+            case ASTORE_2:
+            case ASTORE_3:
+                f.locals[ins.slot()] = pop(f);
+                return;
+            case DUP:
+                stack.add(stack.get(stack.size() - 1));
+                return;
+            case SWAP: {
+                String top = pop(f);
+                String next = pop(f);
+                stack.add(top);
+                stack.add(next);
+                return;
+            }
+            case GETSTATIC:
+                stack.add(type(ins.operand.substring(ins.operand.indexOf(' ') + 1)));
+                return;
+            case PUTSTATIC:
+                pop(f);
+                return;
+            case INVOKEVIRTUAL:
+            case INVOKESPECIAL:
+            case INVOKESTATIC: {
+                String operand = ins.operand;
+                pop(f, argumentTypes(operand).size());
+                if (op != Opcode.INVOKESTATIC) {
+                    String receiver = pop(f);
+                    if (operand.contains("/<init>(")) {
+                        // the object is initialised: every copy of it now has its class type
+                        String owner = type(operand.substring(0, operand.lastIndexOf('/', operand.indexOf('('))));
+                        stack.replaceAll(t -> t.equals(receiver) ? owner : t);
+                        for (int i = 0; i < f.locals.length; i++) {
+                            if (f.locals[i].equals(receiver)) {
+                                f.locals[i] = owner;
+                            }
+                        }
+                    }
+                }
+                String result = operand.substring(operand.indexOf(')') + 1);
+                if (!result.equals("V")) {
+                    stack.add(type(result));
+                }
+                return;
+            }
+            case NEW:
+                stack.add("U" + index);
+                return;
+            case NEWARRAY:
+                pop(f);
+                stack.add("[I");     // the only primitive array SMALL has
+                return;
+            case ANEWARRAY:
+                pop(f);
+                stack.add("[" + type(ins.operand));
+                return;
+            default:
+                // everything else only deals in ints
+                pop(f, op.pops);
+                for (int i = 0; i < op.pushes; i++) {
+                    stack.add(INT);
+                }
+        }
+    }
+}
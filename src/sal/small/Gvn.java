@@ -0,0 +1,362 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package sal.small;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static sal.small.Token.*;
+import static sal.small.Tree.*;
+
+/**
+ * Global value numbering and common subexpression elimination.
+ *
+ * Values of the {@link Ssa} form get the same number when they are sure to
+ * be equal: the same constant, or the same operator applied to values with
+ * the same numbers. As a variable changed in a loop has a phi of its own,
+ * "a + b" before a loop and "a + b" inside it only match when neither
+ * changes in the loop.
+ *
+ * An expression worked out at the start of a statement whose value is
+ * needed again later, in the same statement list or inside one nested in
+ * it, is kept in a new variable by an assignment put just before the
+ * statement. The later copies just load that variable.
+ *
+ * @author Simon
+ * @author Azarias
+ */
+public class Gvn {
+
+    /**
+     * Operators whose operands can be swapped when both are ints.
+     */
+    private static final EnumSet<Token> COMMUTATIVE = EnumSet.of(PLUS, TIMES, MINIMUM, MAXIMUM, BIT_AND, EQ, NE);
+
+    /**
+     * Start of the names of the variables made here, which can't clash with
+     * SMALL's as those start with a letter.
+     */
+    static final String TEMPORARY = "_cse";
+
+    /**
+     * Where an expression is in the tree, so it can be replaced.
+     */
+    private static class Site {
+
+        final Tree<Token> parent;
+        final int index;
+
+        Site(Tree<Token> parent, int index) {
+            this.parent = parent;
+            this.index = index;
+        }
+
+        void replace(Tree<Token> tree) {
+            parent.child(index, tree);
+        }
+    }
+
+    /**
+     * An expression whose value can be kept for later.
+     */
+    private static class Candidate {
+
+        final Tree<Token> expression;
+        final SsaValue value;
+        final Site site;
+        final Tree<Token> statement;
+        final Tree<Token> list;
+        final List<Site> uses = new ArrayList<>();
+
+        Candidate(Tree<Token> expression, SsaValue value, Site site, Tree<Token> statement, Tree<Token> list) {
+            this.expression = expression;
+            this.value = value;
+            this.site = site;
+            this.statement = statement;
+            this.list = list;
+        }
+    }
+
+    private final Ssa ssa;
+    private final Types types;
+    private final Map<SsaValue, Integer> numbers = new IdentityHashMap<>();
+    private final Map<String, Integer> table = new HashMap<>();
+    private final Deque<Map<Integer, Candidate>> available = new ArrayDeque<>();
+    private final List<Candidate> candidates = new ArrayList<>();
+    private int nextNumber;
+    private int temporaries;
+
+    private Gvn(Tree<Token> program) {
+        ssa = Ssa.build(program);
+        types = new Types(program);
+    }
+
+    /**
+     * Remove common subexpressions from a program.
+     *
+     * @param tree AST of the program.
+     * @return the program, changed in place.
+     */
+    public static Tree<Token> program(Tree<Token> tree) {
+        Gvn gvn = new Gvn(tree);
+        gvn.number();
+        gvn.statements(tree);
+        gvn.rewrite();
+        return tree;
+    }
+
+    ////////////////////////// numbering ///////////////////////////////
+    private int fresh() {
+        return ++nextNumber;
+    }
+
+    /**
+     * Number the values in reverse postorder, so the operands of everything
+     * but a phi are numbered first.
+     */
+    private void number() {
+        for (Block block : ssa.reversePostorder()) {
+            for (SsaValue phi : block.phis) {
+                numbers.put(phi, phiNumber(phi));
+            }
+            for (SsaValue value : block.values) {
+                numbers.put(value, valueNumber(value));
+            }
+        }
+    }
+
+    private int phiNumber(SsaValue phi) {
+        Integer same = null;
+        for (SsaValue operand : phi.operands) {
+            Integer number = numbers.get(operand.resolve());
+            if (number == null || (same != null && !same.equals(number))) {
+                return fresh();	// from round a loop, or different values
+            }
+            same = number;
+        }
+        return same == null ? fresh() : same;
+    }
+
+    private int valueNumber(SsaValue value) {
+        String key;
+        switch (value.kind) {
+            case CONSTANT:
+                key = value.token + " " + value.text;
+                break;
+            case OPERATION: {
+                Integer[] operands = new Integer[value.operands.size()];
+                for (int i = 0; i < operands.length; i++) {
+                    operands[i] = numbers.get(value.operands.get(i).resolve());
+                    if (operands[i] == null) {
+                        return fresh();
+                    }
+                }
+                if (operands.length == 2 && COMMUTATIVE.contains(value.token)
+                        && value.operands.get(0).type == Type.INT && value.operands.get(1).type == Type.INT) {
+                    Arrays.sort(operands);
+                }
+                key = value.token + Arrays.toString(operands);
+                break;
+            }
+            default:
+                return fresh();	// not known until it runs
+        }
+        Integer number = table.get(key);
+        if (number == null) {
+            number = fresh();
+            table.put(key, number);
+        }
+        return number;
+    }
+
+    ////////////////////////// finding common expressions ///////////////////////////////
+    private void statements(Tree<Token> list) {
+        if (list == null) {
+            return;
+        }
+        available.push(new HashMap<>());
+        for (Tree<Token> statement : list.allChildren()) {
+            statement(statement, list);
+        }
+        available.pop();
+    }
+
+    /**
+     * Look for common expressions in a statement.
+     *
+     * @param tree the statement.
+     * @param list the statement list it is in.
+     */
+    private void statement(Tree<Token> tree, Tree<Token> list) {
+        if (tree == null) {
+            return;
+        }
+        switch (tree.token()) {
+            case STATEMENTLIST:
+                // no scope of its own, so what it keeps can be used after it
+                for (Tree<Token> statement : tree.allChildren()) {
+                    statement(statement, tree);
+                }
+                return;
+            case BLOCK:
+                statements(tree);
+                return;
+            case ASSIGN:
+                expression(new Site(tree, 1), tree, list);
+                return;
+            case RSQ:
+                expression(new Site(tree, 1), tree, list);
+                expression(new Site(tree, 2), tree, list);
+                return;
+            case PRINT:
+                expression(new Site(tree, 0), tree, list);
+                return;
+            case IF:
+                for (int i = 0; i < tree.children(); i += 2) {
+                    if (tree.child(i) != null) {
+                        // only the first test is always worked out
+                        expression(new Site(tree, i), i == 0 ? tree : null, list);
+                    }
+                    statements(tree.child(i + 1));
+                }
+                return;
+            case WHILE:
+                if (tree.child(0) != null) {
+                    expression(new Site(tree, 0), null, list);
+                }
+                statements(tree.child(1));
+                return;
+            case UNTIL:
+                statements(tree.child(1));
+                if (tree.child(0) != null) {
+                    expression(new Site(tree, 0), null, list);
+                }
+                return;
+            case SWITCH:
+                // the tests share the switched expression, so are left alone
+                for (int i = 1; i < tree.children(); i += 2) {
+                    statements(tree.child(i));
+                }
+                return;
+            default:
+        }
+    }
+
+    private Candidate lookup(int number) {
+        for (Map<Integer, Candidate> scope : available) {
+            Candidate candidate = scope.get(number);
+            if (candidate != null) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Look for common expressions in an expression.
+     *
+     * @param site where the expression is.
+     * @param statement the statement it is worked out at the start of, null
+     * if it may be worked out later or not at all.
+     * @param list the statement list the statement is in.
+     */
+    private void expression(Site site, Tree<Token> statement, Tree<Token> list) {
+        Tree<Token> tree = site.parent.child(site.index);
+        if (tree == null || tree.isLeaf()) {
+            return;
+        }
+        SsaValue value = ssa.value(tree);
+        Integer number = value == null ? null : numbers.get(value);
+        boolean safe = number != null && types.safe(tree);
+        if (safe) {
+            Candidate found = lookup(number);
+            if (found != null && found.value.block.dominates(value.block)) {
+                found.uses.add(site);
+                return;
+            }
+        }
+        for (int i = 0; i < tree.children(); i++) {
+            // only one side of a '?' is worked out
+            boolean always = tree.token() != QUERY || i == 0;
+            expression(new Site(tree, i), always ? statement : null, list);
+        }
+        if (safe && statement != null && value.kind == SsaValue.Kind.OPERATION) {
+            Candidate candidate = new Candidate(tree, value, site, statement, list);
+            available.peek().putIfAbsent(number, candidate);
+            candidates.add(candidate);
+        }
+    }
+
+    ////////////////////////// rewriting ///////////////////////////////
+    /**
+     * Rough number of instructions to work out an expression: library calls
+     * count for more.
+     */
+    private int cost(Tree<Token> tree) {
+        if (tree == null || tree.isLeaf()) {
+            return 1;
+        }
+        int cost = 1;
+        switch (tree.token()) {
+            case TO_STR:
+            case TO_INT:
+            case LENGTH:
+                cost = 4;
+                break;
+            default: {
+                SsaValue value = ssa.value(tree.child(0));
+                if (value != null && value.type == Type.STRING) {
+                    cost = 4;	// concatenation, comparison, substring
+                }
+            }
+        }
+        for (Tree<Token> child : tree.allChildren()) {
+            cost += cost(child);
+        }
+        return cost;
+    }
+
+    /**
+     * Keep the value of each candidate worth keeping in a variable, and use
+     * that instead of the later copies. Inner expressions were found first, so
+     * their assignments come first too.
+     */
+    private void rewrite() {
+        for (Candidate candidate : candidates) {
+            // a store and a load more, one load instead of each copy
+            if (candidate.uses.size() * (cost(candidate.expression) - 1) <= 2) {
+                continue;
+            }
+            String name = TEMPORARY + temporaries++;
+            List<Tree<Token>> statements = candidate.list.allChildren();
+            int at = 0;
+            while (statements.get(at) != candidate.statement) {
+                at++;
+            }
+            statements.add(at, list(ASSIGN, leaf(IDENTIFIER, name), candidate.expression));
+            candidate.site.replace(leaf(IDENTIFIER, name));
+            for (Site use : candidate.uses) {
+                use.replace(leaf(IDENTIFIER, name));
+            }
+        }
+    }
+}
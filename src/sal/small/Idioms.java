@@ -0,0 +1,309 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package sal.small;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static sal.small.Code.intValue;
+import static sal.small.Token.*;
+import static sal.small.Tree.*;
+
+/**
+ * Loop idiom recognition. A counted loop over the elements of an array,
+ * such as
+ *
+ * <pre>
+ * pour i = 0 tantque i &lt; lon a alors i++ faire b[i] = a[i] fin
+ * </pre>
+ *
+ * which does nothing but fill the array with one value, copy it to another
+ * array, or add up or find the least or greatest of its elements, is
+ * replaced by a single call to the library (see {@link sal.Library}), which
+ * uses Arrays.fill and System.arraycopy or a loop simple enough for the JIT
+ * to vectorise.
+ *
+ * The counter is left with the value it would have had after the loop.
+ * Where the loop would have gone outside the array, the library does the
+ * work an element at a time so it fails at the same place.
+ *
+ * @author Simon
+ * @author Azarias
+ */
+public class Idioms {
+
+    private final Types types;
+
+    private Idioms(Tree<Token> program) {
+        types = new Types(program);
+    }
+
+    /**
+     * Replace the loops of a program which can be done by the library.
+     *
+     * @param tree AST of the program.
+     * @return the program, changed in place.
+     */
+    public static Tree<Token> program(Tree<Token> tree) {
+        new Idioms(tree).statements(tree);
+        return tree;
+    }
+
+    private void statements(Tree<Token> list) {
+        if (list == null || list.isLeaf()) {
+            return;
+        }
+        for (int i = 0; i < list.children(); i++) {
+            Tree<Token> statement = list.child(i);
+            if (statement == null) {
+                continue;
+            }
+            switch (statement.token()) {
+                case STATEMENTLIST:
+                case BLOCK:
+                    statements(statement);
+                    break;
+                case IF:
+                case SWITCH:
+                    for (int j = 1; j < statement.children(); j += 2) {
+                        statements(statement.child(j));
+                    }
+                    break;
+                case UNTIL:
+                    statements(statement.child(1));
+                    break;
+                case WHILE: {
+                    List<Tree<Token>> replacement = loop(statement);
+                    if (replacement == null) {
+                        statements(statement.child(1));
+                    } else {
+                        list.allChildren().remove(i);
+                        list.allChildren().addAll(i, replacement);
+                        i += replacement.size() - 1;
+                    }
+                    break;
+                }
+                default:
+            }
+        }
+    }
+
+    /**
+     * Match 'tantque i &lt; end faire ...; i++ fin'.
+     *
+     * @return the statements to use instead of the loop, null if it isn't one
+     * the library can do.
+     */
+    private List<Tree<Token>> loop(Tree<Token> loop) {
+        Tree<Token> test = loop.child(0);
+        if (test == null || (test.token() != LT && test.token() != LE) || test.child(0).token() != IDENTIFIER) {
+            return null;
+        }
+        String counter = test.child(0).toString();
+        Tree<Token> end = test.child(1);
+        if (types.variable(counter) != Type.INT || !invariant(end, counter)) {
+            return null;
+        }
+        if (test.token() == LE) {
+            // 'i <= MAX' would never end, so only a number which can have one added
+            if (end.token() != NUMBER || intValue(end.toString()) == Integer.MAX_VALUE) {
+                return null;
+            }
+            end = Fold.number(intValue(end.toString()) + 1);
+        }
+        List<Tree<Token>> body = new ArrayList<>();
+        flatten(loop.child(1), body);
+        if (body.size() != 2 || !increments(body.get(1), counter)) {
+            return null;
+        }
+        Tree<Token> idiom = idiom(body.get(0), counter, end);
+        if (idiom == null) {
+            return null;
+        }
+        Tree<Token> last = list(QUERY, list(LT, leaf(IDENTIFIER, counter), copy(end)), copy(end), leaf(IDENTIFIER, counter));
+        return Arrays.asList(idiom, list(ASSIGN, leaf(IDENTIFIER, counter), last));
+    }
+
+    /**
+     * The one statement of the loop, done by the library.
+     *
+     * @return the library call, null if there isn't one for it.
+     */
+    private Tree<Token> idiom(Tree<Token> statement, String counter, Tree<Token> end) {
+        Tree<Token> from = leaf(IDENTIFIER, counter);
+        switch (statement.token()) {
+            case RSQ: {
+                // b[i] = a[i] or b[i] = value
+                String target = statement.child(0).toString();
+                Type type = types.variable(target);
+                Tree<Token> index = statement.child(1);
+                Tree<Token> value = statement.child(2);
+                if (type == null || !type.isArray() || !isVariable(index, counter)) {
+                    return null;
+                }
+                String source = element(value, counter);
+                if (source != null && !source.equals(target) && types.variable(source) == type) {
+                    return list(ARRAY_COPY, leaf(IDENTIFIER, source), leaf(IDENTIFIER, target), from, copy(end));
+                }
+                Type element = type == Type.ARRAY_STRING ? Type.STRING : Type.INT;
+                if (source == null && invariant(value, counter) && types.type(value) == element) {
+                    return list(ARRAY_FILL, leaf(IDENTIFIER, target), from, copy(end), value);
+                }
+                return null;
+            }
+            case ASSIGN: {
+                // s = s + a[i]
+                String sum = statement.child(0).toString();
+                Tree<Token> value = statement.child(1);
+                if (value.token() != PLUS || !reduces(sum, counter, end)) {
+                    return null;
+                }
+                String array = element(value.child(1), counter);
+                if (!isVariable(value.child(0), sum) || array == null) {
+                    array = element(value.child(0), counter);
+                    if (!isVariable(value.child(1), sum)) {
+                        return null;
+                    }
+                }
+                return reduction(ARRAY_SUM, sum, array, from, end);
+            }
+            case IF: {
+                // si a[i] > m alors m = a[i] fin, and the other ways round
+                if (statement.children() != 2 || statement.child(0) == null) {
+                    return null;
+                }
+                Tree<Token> test = statement.child(0);
+                List<Tree<Token>> then = new ArrayList<>();
+                flatten(statement.child(1), then);
+                if (then.size() != 1 || then.get(0).token() != ASSIGN) {
+                    return null;
+                }
+                String best = then.get(0).child(0).toString();
+                String array = element(then.get(0).child(1), counter);
+                boolean greater = test.token() == GT || test.token() == GE;
+                if (!greater && test.token() != LT && test.token() != LE || !reduces(best, counter, end)) {
+                    return null;
+                }
+                if (array != null && array.equals(element(test.child(0), counter)) && isVariable(test.child(1), best)) {
+                    return reduction(greater ? ARRAY_MAX : ARRAY_MIN, best, array, from, end);
+                }
+                if (array != null && array.equals(element(test.child(1), counter)) && isVariable(test.child(0), best)) {
+                    return reduction(greater ? ARRAY_MIN : ARRAY_MAX, best, array, from, end);
+                }
+                return null;
+            }
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return true if a variable can keep a reduction: an int which isn't
+     * the counter and which the end of the loop doesn't depend on.
+     */
+    private boolean reduces(String name, String counter, Tree<Token> end) {
+        return types.variable(name) == Type.INT && !name.equals(counter) && !mentions(end, name);
+    }
+
+    private Tree<Token> reduction(Token token, String name, String array, Tree<Token> from, Tree<Token> end) {
+        if (array == null || types.variable(array) != Type.ARRAY_INT) {
+            return null;
+        }
+        Tree<Token> value = list(token, leaf(IDENTIFIER, name), leaf(IDENTIFIER, array), from, copy(end));
+        return list(ASSIGN, leaf(IDENTIFIER, name), value);
+    }
+
+    /**
+     * @return true if a statement adds one to the counter.
+     */
+    private static boolean increments(Tree<Token> statement, String counter) {
+        switch (statement.token()) {
+            case INCREMENT:
+                return isVariable(statement.child(0), counter);
+            case ASSIGN: {
+                Tree<Token> value = statement.child(1);
+                if (!isVariable(statement.child(0), counter) || value.token() != PLUS) {
+                    return false;
+                }
+                return isVariable(value.child(0), counter) && isOne(value.child(1))
+                        || isOne(value.child(0)) && isVariable(value.child(1), counter);
+            }
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isOne(Tree<Token> tree) {
+        return tree.token() == NUMBER && intValue(tree.toString()) == 1;
+    }
+
+    private static boolean isVariable(Tree<Token> tree, String name) {
+        return tree != null && tree.token() == IDENTIFIER && tree.toString().equals(name);
+    }
+
+    /**
+     * @return the name of the array if the expression is 'a[i]', else null.
+     */
+    private static String element(Tree<Token> tree, String counter) {
+        if (tree == null || tree.token() != LSQ || tree.child(0).token() != IDENTIFIER || !isVariable(tree.child(1), counter)) {
+            return null;
+        }
+        return tree.child(0).toString();
+    }
+
+    /**
+     * True if an expression has the same value every time round the loop:
+     * it can't read the counter or an element, which the loop changes, and
+     * can't throw an exception as it may now be worked out when the loop
+     * wouldn't have.
+     */
+    private boolean invariant(Tree<Token> tree, String counter) {
+        return !mentions(tree, counter) && types.safe(tree);
+    }
+
+    private static boolean mentions(Tree<Token> tree, String name) {
+        if (tree == null) {
+            return false;
+        }
+        if (tree.isLeaf()) {
+            return isVariable(tree, name);
+        }
+        return tree.allChildren().stream().anyMatch(child -> mentions(child, name));
+    }
+
+    /**
+     * The statements of a list and the lists inside it, in order.
+     */
+    private static void flatten(Tree<Token> tree, List<Tree<Token>> statements) {
+        if (tree == null) {
+            return;
+        }
+        if (tree.token() == STATEMENTLIST || tree.token() == BLOCK) {
+            tree.allChildren().forEach(child -> flatten(child, statements));
+        } else {
+            statements.add(tree);
+        }
+    }
+
+    private static Tree<Token> copy(Tree<Token> tree) {
+        if (tree == null || tree.isLeaf()) {
+            return tree == null ? null : leaf(tree.token(), ((Tree.Leaf<Token, ?>) tree).value());
+        }
+        Tree<Token> copy = list(tree.token());
+        tree.allChildren().forEach(child -> copy.addChild(copy(child)));
+        return copy;
+    }
+}
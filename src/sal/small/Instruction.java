@@ -0,0 +1,161 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package sal.small;
+
+import java.util.SortedMap;
+import java.util.regex.Pattern;
+
+import static sal.small.Descriptor.*;
+
+/**
+ * One line of generated code, kept in memory until the whole method is known.
+ *
+ * An instruction is a Jasmin mnemonic with its operand written as Jasmin would
+ * expect it, so it can be printed as assembler or encoded directly into a
+ * class file. Labels, jumps and switches refer to {@link Label} descriptors
+ * rather than text so their offsets can be patched in.
+ *
+ * @author Simon
+ * @author Azarias
+ */
+public class Instruction {
+
+    // loads and stores with the slot in the mnemonic
+    private static final Pattern SHORT_SLOT = Pattern.compile("[ia](load|store)_[0-3]");
+
+    final String mnemonic;
+    final String operand;     // null if there isn't one
+    final Opcode opcode;
+
+    public Instruction(String mnemonic, String operand) {
+        this.mnemonic = mnemonic;
+        this.operand = operand;
+        this.opcode = Opcode.of(mnemonic);
+    }
+
+    public Opcode getOpcode() {
+        return opcode;
+    }
+
+    public String getOperand() {
+        return operand;
+    }
+
+    /**
+     * @return the local variable a load, store or iinc uses, -1 for other
+     * instructions.
+     */
+    public int slot() {
+        if (opcode == null) {
+            return -1;
+        }
+        if (opcode.kind == Opcode.Kind.LOCAL || opcode.kind == Opcode.Kind.IINC) {
+            return Integer.parseInt(operand.trim().split("\\s+")[0]);
+        }
+        if (SHORT_SLOT.matcher(mnemonic).matches()) {
+            return mnemonic.charAt(mnemonic.length() - 1) - '0';
+        }
+        return -1;
+    }
+
+    /**
+     * @return change in the operand stack depth.
+     */
+    public int stackEffect() {
+        return opcode == null ? 0 : opcode.stackEffect(operand);
+    }
+
+    /**
+     * @return the instruction as a line of Jasmin.
+     */
+    @Override
+    public String toString() {
+        return operand == null ? String.format("  %s\n", mnemonic)
+                : String.format("  %s %s\n", mnemonic, operand);
+    }
+
+    /**
+     * A label set on the current line. Not an instruction at all, just a
+     * position.
+     */
+    public static class Mark extends Instruction {
+
+        final Label label;
+
+        public Mark(Label label) {
+            super("", null);
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label.toString() + ":\n";
+        }
+    }
+
+    /**
+     * A conditional or unconditional jump to a label.
+     */
+    public static class Jump extends Instruction {
+
+        final Label target;
+
+        public Jump(String mnemonic, Label target) {
+            super(mnemonic, target.toString());
+            this.target = target;
+        }
+    }
+
+    /**
+     * A tableswitch (when table is set) or lookupswitch (when cases is set).
+     */
+    public static class Switch extends Instruction {
+
+        final int low;
+        final Label[] table;
+        final SortedMap<Integer, Label> cases;
+        final Label defaultLabel;
+
+        public Switch(int low, Label[] table, Label defaultLabel) {
+            super("tableswitch", String.format("%d %d", low, low + table.length - 1));
+            this.low = low;
+            this.table = table;
+            this.cases = null;
+            this.defaultLabel = defaultLabel;
+        }
+
+        public Switch(SortedMap<Integer, Label> cases, Label defaultLabel) {
+            super("lookupswitch", null);
+            this.low = 0;
+            this.table = null;
+            this.cases = cases;
+            this.defaultLabel = defaultLabel;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(super.toString());
+            if (table != null) {
+                for (Label label : table) {
+                    text.append(String.format("    %s\n", label.toString()));
+                }
+            } else {
+                cases.forEach((value, label) -> text.append(String.format("    %d : %s\n", value, label.toString())));
+            }
+            text.append(String.format("    default : %s\n", defaultLabel.toString()));
+            return text.toString();
+        }
+    }
+}
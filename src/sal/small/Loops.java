@@ -0,0 +1,462 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package sal.small;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static sal.small.Code.intValue;
+import static sal.small.Token.*;
+import static sal.small.Tree.*;
+
+/**
+ * Loop optimisation, for 'tantque', 'pour' (which the parser turns into a
+ * 'tantque') and 'jusqua'.
+ *
+ * Expressions whose value can't change while the loop runs, such as
+ * 'lon t' or 'n * 4' when neither t nor n is assigned in the loop, are
+ * worked out once before it into a new variable. Only expressions which
+ * can't throw an exception are moved, as the loop may run no times at all.
+ *
+ * A counted loop has an induction variable: one whose only assignments in
+ * the loop add a constant to it. An array index which multiplies it by a
+ * constant gets a variable of its own, which starts at the product and has
+ * the constant times the step added to it next to every step of the
+ * counter, so the multiplication is gone. (Steps are compiled as iinc by
+ * {@link CodeGen}.)
+ *
+ * @author Simon
+ * @author Azarias
+ */
+public class Loops {
+
+    private static final EnumSet<Token> RELATIONS = EnumSet.of(LE, LT, GE, GT, EQ, NE);
+
+    /**
+     * Start of the names of the variables made here.
+     */
+    static final String INVARIANT = "_inv";
+    static final String INDUCTION = "_ind";
+
+    /**
+     * An assignment which steps an induction variable.
+     */
+    private static class Step {
+
+        final Tree<Token> list;
+        final Tree<Token> statement;
+        final int by;
+
+        Step(Tree<Token> list, Tree<Token> statement, int by) {
+            this.list = list;
+            this.statement = statement;
+            this.by = by;
+        }
+    }
+
+    private final Ssa ssa;
+    private final Types types;
+    private int temporaries;
+
+    private Loops(Tree<Token> program) {
+        ssa = Ssa.build(program);
+        types = new Types(program);
+    }
+
+    /**
+     * Optimise the loops of a program.
+     *
+     * @param tree AST of the program.
+     * @return the program, changed in place.
+     */
+    public static Tree<Token> program(Tree<Token> tree) {
+        new Loops(tree).statements(tree);
+        return tree;
+    }
+
+    /**
+     * Find the loops in a statement list, outer loops first so an
+     * expression is moved as far out as it can go.
+     */
+    private void statements(Tree<Token> list) {
+        if (list == null) {
+            return;
+        }
+        for (int i = 0; i < list.children(); i++) {
+            Tree<Token> statement = list.child(i);
+            if (statement == null) {
+                continue;
+            }
+            switch (statement.token()) {
+                case STATEMENTLIST:
+                case BLOCK:
+                    statements(statement);
+                    break;
+                case IF:
+                case SWITCH:
+                    for (int j = 1; j < statement.children(); j += 2) {
+                        statements(statement.child(j));
+                    }
+                    break;
+                case WHILE:
+                case UNTIL: {
+                    List<Tree<Token>> before = loop(statement);
+                    list.allChildren().addAll(i, before);
+                    i += before.size();
+                    statements(statement.child(1));
+                    break;
+                }
+                default:
+            }
+        }
+    }
+
+    /**
+     * Optimise one loop.
+     *
+     * @return the assignments to put before it.
+     */
+    private List<Tree<Token>> loop(Tree<Token> statement) {
+        List<Tree<Token>> before = new ArrayList<>();
+        Ssa.Loop loop = ssa.loop(statement);
+        if (loop != null) {
+            Set<String> assigned = new HashSet<>();
+            assigned(statement, assigned);
+            new Hoist(loop, assigned, before).statement(statement);
+            induction(loop, statement, before);
+        }
+        return before;
+    }
+
+    ////////////////////////// invariant code motion ///////////////////////////////
+    /**
+     * Moves the invariant expressions of one loop.
+     */
+    private class Hoist {
+
+        final Ssa.Loop loop;
+        final Set<String> assigned;     // variables given a value in the loop
+        final List<Tree<Token>> before;
+        final Map<SsaValue, Boolean> invariant = new IdentityHashMap<>();
+        final Map<String, String> moved = new HashMap<>();
+
+        Hoist(Ssa.Loop loop, Set<String> assigned, List<Tree<Token>> before) {
+            this.loop = loop;
+            this.assigned = assigned;
+            this.before = before;
+        }
+
+        void statement(Tree<Token> tree) {
+            if (tree == null || tree.isLeaf()) {
+                return;
+            }
+            switch (tree.token()) {
+                case ASSIGN:
+                    expression(tree, 1);
+                    return;
+                case RSQ:
+                    expression(tree, 1);
+                    expression(tree, 2);
+                    return;
+                case PRINT:
+                    expression(tree, 0);
+                    return;
+                case IF:
+                case WHILE:
+                case UNTIL:
+                    for (int i = 0; i < tree.children(); i += 2) {
+                        expression(tree, i);
+                        statement(tree.child(i + 1));
+                    }
+                    return;
+                case SWITCH:
+                    // the tests share the switched expression, so are left alone
+                    for (int i = 1; i < tree.children(); i += 2) {
+                        statement(tree.child(i));
+                    }
+                    return;
+                default:
+                    tree.allChildren().forEach(this::statement);
+            }
+        }
+
+        void expression(Tree<Token> parent, int index) {
+            Tree<Token> tree = parent.child(index);
+            if (tree == null || tree.isLeaf()) {
+                return;
+            }
+            SsaValue value = ssa.value(tree);
+            // the tree itself is moved, so it mustn't name a variable the loop changes
+            // even when its value is invariant (k * 2 after k = lon s in the loop)
+            if (value != null && !RELATIONS.contains(tree.token()) && isInvariant(value) && types.safe(tree)
+                    && !names(tree, assigned)) {
+                String name = moved.computeIfAbsent(key(value), key -> {
+                    String temporary = INVARIANT + temporaries++;
+                    before.add(list(ASSIGN, leaf(IDENTIFIER, temporary), tree));
+                    return temporary;
+                });
+                parent.child(index, leaf(IDENTIFIER, name));
+                return;
+            }
+            for (int i = 0; i < tree.children(); i++) {
+                expression(tree, i);
+            }
+        }
+
+        /**
+         * True if a value is the same every time round the loop.
+         */
+        boolean isInvariant(SsaValue value) {
+            Boolean known = invariant.get(value);
+            if (known == null) {
+                switch (value.kind) {
+                    case CONSTANT:
+                        known = true;
+                        break;
+                    case UNDEFINED:
+                        known = false;
+                        break;
+                    case OPERATION:
+                        known = !loop.contains(value.block)
+                                || value.operands.stream().allMatch(operand -> isInvariant(operand.resolve()));
+                        break;
+                    default:
+                        known = !loop.contains(value.block);
+                }
+                invariant.put(value, known);
+            }
+            return known;
+        }
+
+        /**
+         * Text which is the same for two invariant values only if they are
+         * sure to be equal, so both can use the same variable.
+         */
+        String key(SsaValue value) {
+            switch (value.kind) {
+                case CONSTANT:
+                    return value.text;
+                case OPERATION: {
+                    StringBuilder key = new StringBuilder(value.token + "(");
+                    value.operands.forEach(operand -> key.append(key(operand.resolve())).append(","));
+                    return key.append(")").toString();
+                }
+                default:
+                    return "v" + value.id;
+            }
+        }
+    }
+
+    /**
+     * Add the variables a statement gives a value to.
+     */
+    private static void assigned(Tree<Token> tree, Set<String> names) {
+        if (tree == null) {
+            return;
+        }
+        switch (tree.token()) {
+            case READ_STR:
+                names.add(tree.toString());
+                return;
+            case ASSIGN:
+            case INCREMENT:
+            case DECREMENT:
+                names.add(tree.child(0).toString());
+                break;
+            default:
+        }
+        if (!tree.isLeaf()) {
+            tree.allChildren().forEach(child -> assigned(child, names));
+        }
+    }
+
+    /**
+     * True if an expression uses one of some variables.
+     */
+    private static boolean names(Tree<Token> tree, Set<String> variables) {
+        if (tree == null) {
+            return false;
+        }
+        if (tree.isLeaf()) {
+            return tree.token() == IDENTIFIER && variables.contains(tree.toString());
+        }
+        return tree.allChildren().stream().anyMatch(child -> names(child, variables));
+    }
+
+    ////////////////////////// induction variables ///////////////////////////////
+    /**
+     * Note how each variable is assigned in a loop.
+     *
+     * @param steps steps of the variables which might be induction variables.
+     * @param others variables assigned some other way.
+     */
+    private static void assignments(Tree<Token> tree, Tree<Token> list, Map<String, List<Step>> steps, Set<String> others) {
+        if (tree == null) {
+            return;
+        }
+        Integer by = null;
+        String name = null;
+        switch (tree.token()) {
+            case STATEMENTLIST:
+            case BLOCK:
+                tree.allChildren().forEach(child -> assignments(child, tree, steps, others));
+                return;
+            case READ_STR:
+                others.add(tree.toString());
+                return;
+            case INCREMENT:
+            case DECREMENT:
+                name = tree.child(0).toString();
+                by = tree.token() == INCREMENT ? 1 : -1;
+                break;
+            case ASSIGN: {
+                name = tree.child(0).toString();
+                Tree<Token> value = tree.child(1);
+                if ((value.token() == PLUS || value.token() == MINUS) && value.children() == 2
+                        && value.child(0).token() == IDENTIFIER && value.child(0).toString().equals(name)
+                        && value.child(1).token() == NUMBER) {
+                    by = intValue(value.child(1).toString());
+                    by = value.token() == PLUS ? by : -by;
+                } else if (value.token() == PLUS && value.children() == 2
+                        && value.child(1).token() == IDENTIFIER && value.child(1).toString().equals(name)
+                        && value.child(0).token() == NUMBER) {
+                    by = intValue(value.child(0).toString());
+                }
+                break;
+            }
+            default:
+                if (!tree.isLeaf()) {
+                    tree.allChildren().forEach(child -> assignments(child, list, steps, others));
+                }
+                return;
+        }
+        if (by == null) {
+            others.add(name);
+        } else {
+            steps.computeIfAbsent(name, n -> new ArrayList<>()).add(new Step(list, tree, by));
+        }
+    }
+
+    /**
+     * @return the counter of 'i * c' or 'c * i', null if it isn't one.
+     */
+    private static Tree<Token> counter(Tree<Token> tree, Map<String, List<Step>> steps) {
+        if (tree == null || tree.token() != TIMES) {
+            return null;
+        }
+        for (int i = 0; i < 2; i++) {
+            Tree<Token> counter = tree.child(i);
+            if (counter.token() == IDENTIFIER && steps.containsKey(counter.toString()) && tree.child(1 - i).token() == NUMBER) {
+                return counter;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Collect the parents of 'i * c' in array indexes, where i is an
+     * induction variable, once for each such child.
+     */
+    private static void indexes(Tree<Token> tree, boolean inIndex, Map<String, List<Step>> steps, List<Tree<Token>> found) {
+        if (tree == null || tree.isLeaf()) {
+            return;
+        }
+        for (int i = 0; i < tree.children(); i++) {
+            boolean index = inIndex || (tree.token() == LSQ || tree.token() == RSQ) && i == 1;
+            if (index && counter(tree.child(i), steps) != null) {
+                found.add(tree);
+            } else {
+                indexes(tree.child(i), index, steps, found);
+            }
+        }
+    }
+
+    /**
+     * Replace 'i * c' in array indexes by a variable stepped along with i.
+     */
+    private void induction(Ssa.Loop loop, Tree<Token> statement, List<Tree<Token>> before) {
+        Map<String, List<Step>> steps = new HashMap<>();
+        Set<String> others = new HashSet<>();
+        assignments(statement.child(1), null, steps, others);
+        steps.keySet().removeAll(others);
+        // it must be an int with a value before the loop
+        steps.keySet().removeIf(name -> types.variable(name) != Type.INT || loop.entering(name) == null);
+        if (steps.isEmpty()) {
+            return;
+        }
+        List<Tree<Token>> found = new ArrayList<>();
+        indexes(statement, false, steps, found);
+        Map<String, String> derived = new LinkedHashMap<>();
+        for (Tree<Token> parent : found) {
+            for (int i = 0; i < parent.children(); i++) {
+                Tree<Token> counter = counter(parent.child(i), steps);
+                if (counter != null) {
+                    parent.child(i, leaf(IDENTIFIER, derived(counter, parent.child(i), steps, derived, before)));
+                }
+            }
+        }
+        // the same products elsewhere in the loop come for free
+        found.clear();
+        indexes(statement, true, steps, found);
+        for (Tree<Token> parent : found) {
+            for (int i = 0; i < parent.children(); i++) {
+                Tree<Token> counter = counter(parent.child(i), steps);
+                if (counter != null && derived.containsKey(key(counter, parent.child(i)))) {
+                    parent.child(i, leaf(IDENTIFIER, derived.get(key(counter, parent.child(i)))));
+                }
+            }
+        }
+    }
+
+    private static String key(Tree<Token> counter, Tree<Token> product) {
+        Tree<Token> factor = product.child(0) == counter ? product.child(1) : product.child(0);
+        return counter + "*" + intValue(factor.toString());
+    }
+
+    /**
+     * @return the variable standing for 'i * c', made if it is new.
+     */
+    private String derived(Tree<Token> counter, Tree<Token> product, Map<String, List<Step>> steps,
+            Map<String, String> derived, List<Tree<Token>> before) {
+        Tree<Token> factor = product.child(0) == counter ? product.child(1) : product.child(0);
+        int by = intValue(factor.toString());
+        String key = key(counter, product);
+        String name = derived.get(key);
+        if (name != null) {
+            return name;
+        }
+        name = INDUCTION + temporaries++;
+        derived.put(key, name);
+        before.add(list(ASSIGN, leaf(IDENTIFIER, name), list(TIMES, leaf(IDENTIFIER, counter.toString()), Fold.number(by))));
+        for (Step step : steps.get(counter.toString())) {
+            // keep it equal to i * c by stepping it straight after i
+            List<Tree<Token>> statements = step.list.allChildren();
+            int at = 0;
+            while (statements.get(at) != step.statement) {
+                at++;
+            }
+            statements.add(at + 1, list(ASSIGN, leaf(IDENTIFIER, name),
+                    list(PLUS, leaf(IDENTIFIER, name), Fold.number(by * step.by))));
+        }
+        return name;
+    }
+}
@@ -29,14 +29,29 @@
  */
 package sal.small;
 
-import sal.util.ErrorStream;
 import sal.util.RE;
 import sal.util.Lexer;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 import static sal.small.Scope.*;
 import static sal.small.Token.EOF;
@@ -47,6 +62,96 @@ import static sal.util.ErrorStream.errorCount;
  */
 public class Main {
 
+    /**
+     * What the command line asks for, the same for every file.
+     */
+    private static class Options {
+
+        // not specified, use the working directory
+        String outputDir;
+        boolean classFile = false;      // write the .class ourselves instead of using Jasmin
+        boolean frames = false;         // with -native, write Java 8 classes with StackMapTable frames
+        boolean inMemory = false;       // assemble with Jasmin from memory, not from a .j file
+        boolean listing = false;        // with -native or -memory, write the .j as well
+        int jobs = 1;                   // files compiled at once
+        boolean incremental = false;    // skip files which haven't changed
+        Manifest manifest;              // with -incremental, what was built before
+        boolean watch = false;          // compile files again as they change
+        boolean stream = false;         // generate each statement as soon as it is parsed
+        boolean run = false;            // run the program instead of writing it
+
+        /**
+         * @return the options which change what is written for a file.
+         */
+        String settings() {
+            String settings = classFile ? (frames ? "-frames" : "-native") : inMemory ? "-memory" : "-jasmin";
+            if (listing) {
+                settings += " -listing";
+            }
+            if (stream) {
+                settings += " -stream";
+            }
+            settings += " -split " + Split.getBudget();
+            if (Split.isOutline()) {
+                settings += " -outline";
+            }
+            if (!Optimise.isEnabled()) {
+                settings += " -O0";
+            }
+            return settings;
+        }
+    }
+
+    /**
+     * Held while Jasmin runs.
+     */
+    private static final Object JASMIN = new Object();
+
+    /**
+     * What compiling one file printed, kept until the files before it have
+     * been reported.
+     */
+    private static class Report {
+
+        // each piece of output, in order, with the stream it was for
+        final List<PrintStream> streams = new ArrayList<>();
+        final List<byte[]> texts = new ArrayList<>();
+        final PrintStream out = capture(System.out);
+        final PrintStream err = capture(System.err);
+        boolean ok;
+        private boolean printed = false;    // once printed, output goes straight through
+
+        private PrintStream capture(PrintStream stream) {
+            return new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    if (printed) {
+                        stream.write(b, off, len);
+                        stream.flush();
+                        return;
+                    }
+                    streams.add(stream);
+                    texts.add(Arrays.copyOfRange(b, off, off + len));
+                }
+            });
+        }
+
+        void print() {
+            for (int i = 0; i < texts.size(); i++) {
+                streams.get(i).write(texts.get(i), 0, texts.get(i).length);
+                streams.get(i).flush();
+            }
+            streams.clear();
+            texts.clear();
+            printed = true;
+        }
+    }
+
     /////////////////// Make getting file details look prettier //////////////////////
     // recording details used in SMALL program for file name
     /**
@@ -110,73 +215,674 @@ public class Main {
         return outputStream;
     }
 
-    public static void main(String[] args) {
-        int argsLength = args.length;
-        if (argsLength == 0) {
-            System.err.println("Valid arguments are: [-output folder] (filename )+ ");
-            System.exit(1);
+    /**
+     * Check whether a command line argument is (an abbreviation of) an option.
+     *
+     * @param arg the argument.
+     * @param option the full option, e.g. "-output".
+     * @return true if arg names the option.
+     */
+    static boolean isOption(String arg, String option) {
+        return arg.length() > 1 && option.startsWith(arg.toLowerCase());
+    }
+
+    /**
+     * Write a class file directly, without going through Jasmin.
+     *
+     * @param program the generated class.
+     * @param fileName name of the .class file.
+     * @param err where to report errors.
+     * @return true if it was written.
+     */
+    private static boolean writeClassFile(ClassFile program, String fileName, PrintStream err) {
+        byte[] bytes = program.toBytes();
+        if (errorCount() != 0) {
+            return false;
         }
+        try (FileOutputStream out = new FileOutputStream(fileName)) {
+            out.write(bytes);
+            return true;
+        } catch (IOException e) {
+            err.printf("Couldn\'t write class file %s : %s\n", fileName, e.getMessage());
+            return false;
+        }
+    }
 
-        String outputDir;
-        int argIndex = 0;
-        String arg0 = args[0];
-        // check for an output directory parameter
-        if (argsLength >= 2 && arg0.length() > 1 && "-output".startsWith(arg0.toLowerCase())) {
-            // found output directory
-            outputDir = args[1];
-            argIndex = 2;   // start filenames at arg 3
-        } else {
-            // not specified, use current working directory
-            outputDir = System.getProperty("user.dir");
+    /**
+     * Assemble Jasmin held in memory and write the .class file, using
+     * Jasmin's parser and class writer rather than its command line (which
+     * expects a file and may exit the process).
+     *
+     * @param assembler the Jasmin source.
+     * @param fileName name of the SMALL program, for error messages.
+     * @param outputDir folder for the .class file, with a trailing separator.
+     * @param err where to report errors.
+     * @return the name of the class written, or null if it failed.
+     */
+    private static String assemble(String assembler, String fileName, String outputDir, PrintStream err) {
+        jasmin.ClassFile classFile = new jasmin.ClassFile();
+        // Jasmin keeps some of its state in statics, so one file at a time
+        synchronized (JASMIN) {
+            try {
+                classFile.readJasmin(new StringReader(assembler), fileName, false);
+                if (classFile.errorCount() != 0) {
+                    err.printf("%d errors while assembling %s\n", classFile.errorCount(), fileName);
+                    return null;
+                }
+                String className = classFile.getClassName();
+                try (FileOutputStream out = new FileOutputStream(outputDir + className + ".class")) {
+                    classFile.write(out);
+                }
+                return className;
+            } catch (Exception e) {
+                err.printf("Couldn\'t assemble %s : %s\n", fileName, e.getMessage());
+                return null;
+            }
         }
+    }
 
-        // check it has a trailing separator
-        String fileSep = System.getProperty("file.separator");
-        if (!outputDir.endsWith(fileSep)) {
-            outputDir += fileSep;
+    /**
+     * One program on its way through the compiler: the phases below each take
+     * it a step further.
+     */
+    private static class Job {
+
+        final String fileName;
+        final Options options;
+        final PrintStream out;          // where to report progress
+        final PrintStream err;          // where to report errors
+        Compilation compilation;
+        Tree<Token> tree;
+        String outputFile;
+        String className;
+        ClassFile program;              // with -native
+        String assembler;               // otherwise
+        boolean done = false;           // nothing more to do for this file
+        boolean stop = false;           // the compiler should stop after it
+        Report report;                  // what it printed, in a pipeline
+        Throwable failure;              // thrown by a phase on another thread
+
+        Job(String fileName, Options options, PrintStream out, PrintStream err) {
+            this.fileName = fileName;
+            this.options = options;
+            this.out = out;
+            this.err = err;
         }
 
-        // process each file in turn
-        while (argIndex < argsLength) {
-            String fileName = args[argIndex++];
+        Job(String fileName, Options options, Report report) {
+            this(fileName, options, report.out, report.err);
+            this.report = report;
+        }
+    }
+
+    /**
+     * Compile one program in a compilation of its own.
+     *
+     * @param fileName the program.
+     * @param options from the command line.
+     * @param out where to report progress.
+     * @param err where to report errors.
+     * @return false if the compiler should stop.
+     */
+    private static boolean compile(String fileName, Options options, PrintStream out, PrintStream err) {
+        Job job = new Job(fileName, options, out, err);
+        if (options.stream) {
+            stream(job);
+            return !job.stop;
+        }
+        parse(job);
+        generate(job);
+        write(job);
+        return !job.stop;
+    }
 
-            BufferedReader inputReader = getInputReader(fileName);
-            if (inputReader == null) {
-                System.err.printf("No file called %s\n", fileName);
-                continue;   // go onto next file
+    /**
+     * Compile a program with -stream: all the phases at once, a statement at
+     * a time.
+     */
+    private static void stream(Job job) {
+        Options options = job.options;
+        if (options.manifest != null && options.manifest.upToDate(job.fileName)) {
+            job.out.printf("Up to date: %s\n", job.fileName);
+            return;
+        }
+        BufferedReader inputReader = getInputReader(job.fileName);
+        if (inputReader == null) {
+            job.err.printf("No file called %s\n", job.fileName);
+            return;
+        }
+        try (Compilation compilation = Compilation.begin(job.fileName, job.err)) {
+            Token.startLexer(inputReader);
+            String outputFile = getOutputFileName(job.fileName);
+            job.out.printf("Compiling %s to %s\n", job.fileName, options.outputDir + outputFile);
+            try {
+                if (!Streaming.program(Paths.get(options.outputDir + outputFile), Paths.get(options.outputDir + outputFile + ".parts"))) {
+                    job.out.printf("%d errors while compiling %s.  No code written\n", compilation.errorCount(), job.fileName);
+                    return;
+                }
+            } catch (IOException e) {
+                job.err.printf("Couldn\'t create output file %s : %s\n", outputFile, e.getMessage());
+                return;
+            }
+            job.out.printf("Generated: %s\n", outputFile);
+            String jasminArgs[] = new String[]{options.outputDir + outputFile};
+            synchronized (JASMIN) {
+                jasmin.Main.main(jasminArgs);
+            }
+            if (options.manifest != null) {
+                options.manifest.built(job.fileName, outputFile);
             }
+        }
+    }
 
-            // initialise the error count
-            errorCount(0);
-            ErrorStream.errorSource(fileName);  // to include file name in error messages
+    /**
+     * First phase: read, parse and optimise the program.
+     */
+    private static void parse(Job job) {
+        if (job.options.manifest != null && job.options.manifest.upToDate(job.fileName)) {
+            job.out.printf("Up to date: %s\n", job.fileName);
+            job.done = true;
+            return;
+        }
+        BufferedReader inputReader = getInputReader(job.fileName);
+        if (inputReader == null) {
+            job.err.printf("No file called %s\n", job.fileName);
+            job.done = true;   // go onto next file
+            return;
+        }
+        job.compilation = Compilation.begin(job.fileName, job.err);
+        try (Compilation compilation = job.compilation) {
             Token.startLexer(inputReader);      // connect the scanner to the input file
             // parse the program
             // get access to the 'global' context
             Tree<Token> tree = Parse.program();
-            if (errorCount() != 0) {
-                System.out.printf("%d errors while parsing %s.  Code generation not attempted\n", errorCount(), fileName);
-                continue;
+            if (compilation.errorCount() != 0) {
+                job.out.printf("%d errors while parsing %s.  Code generation not attempted\n", compilation.errorCount(), job.fileName);
+                job.done = true;
+                return;
             }
-            String outputFile = getOutputFileName(fileName);
-            System.out.printf("Compiling %s to %s\n", fileName, outputDir + outputFile);
-            PrintStream outputStream = getOutputStream(outputDir + outputFile);
+            job.tree = Optimise.program(tree);
+            job.outputFile = getOutputFileName(job.fileName);
+            job.className = getGlobal("CLASS NAME");
+        }
+    }
+
+    /**
+     * Second phase: generate the class, or the Jasmin for it.
+     */
+    private static void generate(Job job) {
+        if (job.done) {
+            return;
+        }
+        Options options = job.options;
+        try (Compilation compilation = job.compilation.resume()) {
+            if (options.classFile) {
+                if (!options.run) {
+                    job.out.printf("Compiling %s to %s\n", job.fileName, options.outputDir + job.className + ".class");
+                }
+                job.program = CodeGen.generateProgram(job.tree);
+                if (options.frames) {
+                    job.program.setVersion(ClassFile.FRAMES_VERSION);
+                }
+            } else {
+                if (options.inMemory) {
+                    job.out.printf("Compiling %s\n", job.fileName);
+                } else {
+                    job.out.printf("Compiling %s to %s\n", job.fileName, options.outputDir + job.outputFile);
+                }
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                PrintStream bufferStream = new PrintStream(buffer);
+                CodeGen.writeProgram(bufferStream, job.tree);
+                bufferStream.close();
+                job.assembler = buffer.toString();
+            }
+            if (compilation.errorCount() != 0) {
+                job.out.printf("%d errors during code generation\n", compilation.errorCount());
+                job.done = job.stop = true;
+            }
+        }
+    }
+
+    /**
+     * Last phase: write the files, assembling them if need be.
+     */
+    private static void write(Job job) {
+        if (job.done) {
+            return;
+        }
+        Options options = job.options;
+        PrintStream out = job.out;
+        PrintStream err = job.err;
+        String outputFile = job.outputFile;
+        Manifest manifest = options.manifest;
+        try (Compilation compilation = job.compilation.resume()) {
+            if (options.classFile) {
+                if (options.listing) {
+                    PrintStream outputStream = getOutputStream(options.outputDir + outputFile);
+                    if (outputStream == null) {
+                        err.printf("Couldn\'t create output file %s\n", outputFile);
+                    } else {
+                        CodeGen.writeProgram(outputStream, job.program);
+                        outputStream.close();
+                    }
+                }
+                if (writeClassFile(job.program, options.outputDir + job.className + ".class", err)) {
+                    out.printf("Generated: %s.class\n", job.className);
+                    if (manifest != null) {
+                        manifest.built(job.fileName, written(job.className + ".class", options.listing ? outputFile : null));
+                    }
+                } else if (compilation.errorCount() != 0) {
+                    out.printf("%d errors while writing %s.class\n", compilation.errorCount(), job.className);
+                    job.stop = true;
+                }
+                return;
+            }
+            if (options.inMemory) {
+                if (options.listing) {
+                    PrintStream outputStream = getOutputStream(options.outputDir + outputFile);
+                    if (outputStream == null) {
+                        err.printf("Couldn\'t create output file %s\n", outputFile);
+                    } else {
+                        outputStream.print(job.assembler);
+                        outputStream.close();
+                    }
+                }
+                String className = assemble(job.assembler, job.fileName, options.outputDir, err);
+                if (className == null) {
+                    job.stop = true;
+                    return;
+                }
+                out.printf("Generated: %s.class\n", className);
+                if (manifest != null) {
+                    manifest.built(job.fileName, written(className + ".class", options.listing ? outputFile : null));
+                }
+                return;
+            }
+            PrintStream outputStream = getOutputStream(options.outputDir + outputFile);
             if (outputStream == null) {
-                System.err.printf("Couldn\'t create output file %s : Skipping code generation\n", outputFile);
+                err.printf("Couldn\'t create output file %s : Skipping code generation\n", outputFile);
             } else {
-                // set the output stream for code generation
-                CodeGen.writeProgram(outputStream, tree);// generate code
-                // then close the output stream
+                outputStream.print(job.assembler);
                 outputStream.close();
-                if (errorCount() != 0) {
-                    System.out.printf("%d errors during code generation\n", errorCount());
-                    System.exit(1);
-                }
                 // no errors run the Jasmin assembler to generate a .class file.
-                System.out.printf("Generated: %s\n", outputFile);
-                String jasminArgs[] = new String[]{outputDir + outputFile};
-                jasmin.Main.main(jasminArgs);
+                out.printf("Generated: %s\n", outputFile);
+                String jasminArgs[] = new String[]{options.outputDir + outputFile};
+                synchronized (JASMIN) {
+                    jasmin.Main.main(jasminArgs);
+                }
+                if (manifest != null) {
+                    manifest.built(job.fileName, outputFile);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compile a program with -run and run it here, writing nothing. What the
+     * compiler has to say goes to System.err, so the program's output is all
+     * there is on System.out.
+     *
+     * @param fileName the program.
+     * @param options from the command line.
+     * @param args the arguments for the program.
+     * @return the exit status.
+     */
+    private static int runProgram(String fileName, Options options, String[] args) {
+        Job job = new Job(fileName, options, System.err, System.err);
+        parse(job);
+        generate(job);
+        if (job.done) {
+            return 1;
+        }
+        byte[] bytes;
+        try (Compilation compilation = job.compilation.resume()) {
+            bytes = job.program.toBytes();
+            if (compilation.errorCount() != 0) {
+                job.err.printf("%d errors while making %s.class\n", compilation.errorCount(), job.className);
+                return 1;
+            }
+        }
+        return Runner.run(job.className, bytes, args, System.err);
+    }
+
+    /**
+     * @return the files written, leaving out the ones which weren't.
+     */
+    private static String[] written(String... files) {
+        return Arrays.stream(files).filter(file -> file != null).toArray(String[]::new);
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 2 && isOption(args[0], "-server")) {
+            // stay up compiling for sal.small.Client
+            System.exit(Server.serve(Paths.get(args[1])));
+        }
+        int status = run(args, Paths.get(""));
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * Compile what a command line asks for.
+     *
+     * @param args the command line.
+     * @param directory where relative file names are from.
+     * @return the exit status, 0 if all went well.
+     */
+    static int run(String[] args, Path directory) {
+        int argsLength = args.length;
+        if (argsLength == 0) {
+            System.err.println("Valid arguments are: [-output folder] [-native [-frames] | -memory] [-listing] [-split bytes] [-outline] [-O0] [-j jobs] [-parallel] [-incremental] [-watch] [-stream] (filename | folder | @argfile)+ ");
+            System.err.println("                 or: [options] -run filename [arguments]");
+            System.err.println("                 or: -server socket");
+            return 1;
+        }
+
+        // the options kept in statics may have been set by an earlier run
+        Optimise.setEnabled(true);
+        Split.setBudget(Split.DEFAULT_BUDGET);
+        Split.setOutline(false);
+        Regions.setEnabled(false);
+
+        Options options = new Options();
+        options.outputDir = directory.toAbsolutePath().toString();
+        int argIndex = 0;
+        // check for options before the file names
+        while (argIndex < argsLength && args[argIndex].startsWith("-")) {
+            String arg = args[argIndex++];
+            if (isOption(arg, "-output") && argIndex < argsLength) {
+                // found output directory
+                options.outputDir = directory.resolve(args[argIndex++]).toString();
+            } else if (isOption(arg, "-native")) {
+                options.classFile = true;
+            } else if (isOption(arg, "-split") && argIndex < argsLength) {
+                // largest main may be before it is cut into parts, 0 never splits
+                try {
+                    Split.setBudget(Integer.parseInt(args[argIndex++]));
+                } catch (NumberFormatException e) {
+                    System.err.printf("-split needs a number of bytes, not %s\n", args[argIndex - 1]);
+                    return 1;
+                }
+            } else if (arg.equals("-j") && argIndex < argsLength) {
+                // files compiled at once, 0 for one per processor
+                try {
+                    options.jobs = Integer.parseInt(args[argIndex++]);
+                } catch (NumberFormatException e) {
+                    System.err.printf("-j needs a number of jobs, not %s\n", args[argIndex - 1]);
+                    return 1;
+                }
+                if (options.jobs <= 0) {
+                    options.jobs = Runtime.getRuntime().availableProcessors();
+                }
+            } else if (arg.equals("-O0")) {
+                // no optimisation
+                Optimise.setEnabled(false);
+            } else if (isOption(arg, "-outline")) {
+                Split.setOutline(true);
+            } else if (isOption(arg, "-parallel")) {
+                // main of a big program generated on several threads
+                Regions.setEnabled(true);
+            } else if (isOption(arg, "-frames")) {
+                options.classFile = true;
+                options.frames = true;
+            } else if (isOption(arg, "-memory")) {
+                options.inMemory = true;
+            } else if (isOption(arg, "-listing")) {
+                options.listing = true;
+            } else if (isOption(arg, "-incremental")) {
+                // skip the files which haven't changed since they were last compiled
+                options.incremental = true;
+            } else if (isOption(arg, "-watch")) {
+                // then wait for the files to change
+                options.watch = true;
+            } else if (isOption(arg, "-stream")) {
+                // for huge programs: only one statement is held at a time
+                options.stream = true;
+            } else if (isOption(arg, "-run")) {
+                // the program is run, with the arguments after it
+                options.run = true;
+                options.classFile = true;
+                break;
+            } else {
+                System.err.printf("Unknown option %s\n", arg);
+                return 1;
+            }
+        }
+
+        if (options.run) {
+            if (options.inMemory || options.listing || options.incremental || options.watch || options.stream || options.jobs > 1) {
+                System.err.println("-run writes nothing, so can\'t be used with -memory, -listing, -incremental, -watch, -stream or -j");
+                return 1;
+            }
+            if (argIndex >= argsLength) {
+                System.err.println("-run needs a program to run");
+                return 1;
+            }
+            return runProgram(directory.resolve(args[argIndex]).toString(), options, Arrays.copyOfRange(args, argIndex + 1, argsLength));
+        }
+
+        if (options.stream && (options.classFile || options.inMemory)) {
+            System.err.println("-stream writes a .j file, so can\'t be used with -native, -frames or -memory");
+            return 1;
+        }
+
+        // check it has a trailing separator
+        String fileSep = System.getProperty("file.separator");
+        if (!options.outputDir.endsWith(fileSep)) {
+            options.outputDir += fileSep;
+        }
+
+        if (options.incremental) {
+            options.manifest = new Manifest(options.outputDir, options.settings());
+        }
+
+        List<String> files = new ArrayList<>();
+        List<Path> folders = new ArrayList<>();
+        while (argIndex < argsLength) {
+            inputs(directory, args[argIndex++], files, folders);
+        }
+        boolean ok = build(files, options);
+        if (options.watch) {
+            return Watch.watch(files, folders, changed -> build(changed, options));
+        }
+        return ok ? 0 : 1;
+    }
+
+    /**
+     * Compile some files, in the way the options ask.
+     *
+     * @return false if a file stopped the compiler.
+     */
+    private static boolean build(List<String> files, Options options) {
+        boolean ok = true;
+        if (options.jobs > 1) {
+            ok = compileAll(files, options);
+        } else if (files.size() > 1 && !options.stream) {
+            ok = compilePipelined(files, options);
+        } else {
+            // process each file in turn
+            for (String fileName : files) {
+                if (!compile(fileName, options, System.out, System.err)) {
+                    ok = false;
+                    break;
+                }
+            }
+        }
+        if (options.manifest != null) {
+            options.manifest.save();
+        }
+        return ok;
+    }
+
+    /**
+     * Add the files an argument names: a folder stands for all the .sm files
+     * in it and its subfolders, '@file' for the arguments in the file, one a
+     * line (blank lines and lines starting with '#' are left out).
+     *
+     * @param directory where relative names are from.
+     * @param arg the argument.
+     * @param files where to add the file names.
+     * @param folders where to add the folders named.
+     */
+    private static void inputs(Path directory, String arg, List<String> files, List<Path> folders) {
+        if (arg.startsWith("@")) {
+            try {
+                for (String line : Files.readAllLines(directory.resolve(arg.substring(1)))) {
+                    line = line.trim();
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        inputs(directory, line, files, folders);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.printf("Couldn\'t read argument file %s : %s\n", arg.substring(1), e.getMessage());
+            }
+            return;
+        }
+        Path path = directory.resolve(arg);
+        if (!Files.isDirectory(path)) {
+            files.add(path.toString());
+            return;
+        }
+        folders.add(path);
+        try (Stream<Path> walk = Files.walk(path)) {
+            walk.filter(p -> p.toString().endsWith(".sm") && Files.isRegularFile(p))
+                    .map(Path::toString)
+                    .sorted()
+                    .forEachOrdered(files::add);
+        } catch (IOException e) {
+            System.err.printf("Couldn\'t read folder %s : %s\n", arg, e.getMessage());
+        }
+    }
+
+    /**
+     * Jobs waiting between two phases: few, so a phase which gets ahead waits
+     * for the next one rather than holding many programs in memory.
+     */
+    private static final int QUEUED = 2;
+
+    /**
+     * Marks the end of the files in a queue.
+     */
+    private static final Job LAST = new Job(null, null, null, null);
 
+    /**
+     * Compile files one at a time, but with the phases in a pipeline: while
+     * one program is written and assembled the next has its code generated
+     * and the one after is parsed, so the time spent waiting for files is
+     * hidden behind the work of the others. What the first two phases print
+     * is held back until the file reaches the last one.
+     *
+     * @return false if a file stopped the compiler: the files after it are
+     * neither written nor reported.
+     */
+    private static boolean compilePipelined(List<String> files, Options options) {
+        BlockingQueue<Job> parsed = new ArrayBlockingQueue<>(QUEUED);
+        BlockingQueue<Job> generated = new ArrayBlockingQueue<>(QUEUED);
+        Thread parser = phase("parse", () -> {
+            for (String fileName : files) {
+                Job job = new Job(fileName, options, new Report());
+                run(job, Main::parse);
+                parsed.put(job);
+            }
+            parsed.put(LAST);
+        });
+        Thread generator = phase("generate", () -> {
+            for (Job job = parsed.take(); job != LAST; job = parsed.take()) {
+                run(job, Main::generate);
+                generated.put(job);
+            }
+            generated.put(LAST);
+        });
+        try {
+            for (Job job = generated.take(); job != LAST; job = generated.take()) {
+                // its turn has come, so what it prints from here on needn't wait
+                job.report.print();
+                run(job, Main::write);
+                if (job.failure != null) {
+                    throw new IllegalStateException("Couldn\'t compile " + job.fileName, job.failure);
+                }
+                if (job.stop) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            parser.interrupt();
+            generator.interrupt();
+        }
+    }
+
+    /**
+     * A phase which goes on until it has passed on all the files or is
+     * interrupted.
+     */
+    private interface Phase {
+
+        void run() throws InterruptedException;
+    }
+
+    private static Thread phase(String name, Phase phase) {
+        Thread thread = new Thread(() -> {
+            try {
+                phase.run();
+            } catch (InterruptedException e) {
+                // the compiler has stopped
+            }
+        }, "small-" + name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Take a job through a phase, keeping anything thrown to be reported in
+     * its turn. A job which failed goes through the later phases untouched.
+     */
+    private static void run(Job job, Consumer<Job> step) {
+        if (job.failure != null) {
+            return;
+        }
+        try {
+            step.accept(job);
+        } catch (RuntimeException | Error e) {
+            job.failure = e;
+            job.done = true;
+        }
+    }
+
+    /**
+     * Compile files on a work-stealing pool of -j threads. What each prints
+     * is held back and printed in the order the files were given, so the
+     * messages read as they would one file at a time.
+     *
+     * @return false if a file stopped the compiler: the files after it are
+     * not reported.
+     */
+    private static boolean compileAll(List<String> files, Options options) {
+        ForkJoinPool pool = new ForkJoinPool(options.jobs);
+        try {
+            List<ForkJoinTask<Report>> reports = new ArrayList<>();
+            for (String fileName : files) {
+                reports.add(pool.submit(() -> {
+                    Report report = new Report();
+                    report.ok = compile(fileName, options, report.out, report.err);
+                    return report;
+                }));
+            }
+            for (ForkJoinTask<Report> task : reports) {
+                Report report = task.join();
+                report.print();
+                if (!report.ok) {
+                    return false;
+                }
             }
+            return true;
+        } finally {
+            pool.shutdownNow();
         }
     }
 }
@@ -0,0 +1,196 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package sal.small;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * What earlier builds made, for -incremental. For each program compiled it
+ * keeps a hash of the source, the compiler and options it was compiled with
+ * and the files written for it. A program whose entry still matches, and
+ * whose files are all still there, needn't be compiled again.
+ *
+ * Kept in the output folder, one line a program:
+ *
+ * <pre>
+ * source	hash	compiler	options	file,file...
+ * </pre>
+ *
+ * The files are the ones the compiler writes itself, named from the output
+ * folder: with Jasmin run on a .j file that is only the .j.
+ *
+ * @author Simon
+ * @author Azarias
+ */
+class Manifest {
+
+    static final String FILE_NAME = "small.manifest";
+
+    private static final int HASH = 0, COMPILER = 1, OPTIONS = 2, FILES = 3;
+
+    private final String outputDir;
+    private final String compiler = compilerVersion();
+    private final String options;
+
+    // by full path of the source
+    private final Map<String, String[]> entries = new TreeMap<>();
+    private final Map<String, String> hashes = new HashMap<>();
+
+    /**
+     * Read the manifest of an output folder, if it has one.
+     *
+     * @param outputDir the folder, with a trailing separator.
+     * @param options the options which change what is written.
+     */
+    Manifest(String outputDir, String options) {
+        this.outputDir = outputDir;
+        this.options = options;
+        Path path = Paths.get(outputDir + FILE_NAME);
+        if (!Files.isRegularFile(path)) {
+            return;
+        }
+        try {
+            for (String line : Files.readAllLines(path)) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length == FILES + 2) {
+                    entries.put(fields[0], new String[]{fields[1], fields[2], fields[3], fields[4]});
+                }
+            }
+        } catch (IOException e) {
+            // build everything again
+            entries.clear();
+        }
+    }
+
+    /**
+     * Check whether a program has to be compiled. Its entry is dropped if it
+     * does, until it has been.
+     *
+     * @param fileName the program.
+     * @return true if it was compiled before, in the same way, from the same
+     * source.
+     */
+    synchronized boolean upToDate(String fileName) {
+        String source = key(fileName);
+        String[] entry = entries.remove(source);
+        String hash = hash(fileName);
+        if (hash == null) {
+            return false;
+        }
+        hashes.put(source, hash);
+        if (entry == null || compiler == null
+                || !entry[HASH].equals(hash) || !entry[COMPILER].equals(compiler) || !entry[OPTIONS].equals(options)) {
+            return false;
+        }
+        for (String file : entry[FILES].split(",")) {
+            if (!Files.isRegularFile(Paths.get(outputDir + file))) {
+                return false;
+            }
+        }
+        entries.put(source, entry);
+        return true;
+    }
+
+    /**
+     * Note that a program has been compiled, from the source hashed when
+     * {@link #upToDate(String)} was asked.
+     *
+     * @param fileName the program.
+     * @param files what was written, in the output folder.
+     */
+    synchronized void built(String fileName, String... files) {
+        String source = key(fileName);
+        String hash = hashes.get(source);
+        if (hash != null && compiler != null) {
+            entries.put(source, new String[]{hash, compiler, options, String.join(",", files)});
+        }
+    }
+
+    /**
+     * Write the manifest back to the output folder.
+     */
+    synchronized void save() {
+        Path path = Paths.get(outputDir + FILE_NAME);
+        Path temporary = Paths.get(outputDir + FILE_NAME + ".tmp");
+        try (PrintStream out = new PrintStream(temporary.toFile(), "UTF-8")) {
+            entries.forEach((source, entry) -> out.println(source + "\t" + String.join("\t", entry)));
+        } catch (IOException e) {
+            System.err.printf("Couldn\'t write %s : %s\n", path, e.getMessage());
+            return;
+        }
+        try {
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.printf("Couldn\'t write %s : %s\n", path, e.getMessage());
+        }
+    }
+
+    private static String key(String fileName) {
+        return Paths.get(fileName).toAbsolutePath().normalize().toString();
+    }
+
+    /**
+     * @return SHA-256 of a file in hex, null if it can't be read.
+     */
+    private static String hash(String fileName) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(Paths.get(fileName)));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Which compiler this is: the version of its jar, or when it isn't in
+     * one when its classes were last built.
+     *
+     * @return the version, null if there is no telling.
+     */
+    private static String compilerVersion() {
+        String version = Manifest.class.getPackage().getImplementationVersion();
+        if (version != null) {
+            return version;
+        }
+        try {
+            Path code = Paths.get(Manifest.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            if (!Files.isDirectory(code)) {
+                return Long.toString(Files.getLastModifiedTime(code).toMillis());
+            }
+            try (Stream<Path> walk = Files.walk(code)) {
+                return Long.toString(walk.filter(p -> p.toString().endsWith(".class"))
+                        .mapToLong(p -> p.toFile().lastModified())
+                        .max().orElse(0));
+            }
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
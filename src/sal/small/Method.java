@@ -0,0 +1,225 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package sal.small;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static sal.small.Descriptor.*;
+
+/**
+ * The code of one method of the generated class, as a list of
+ * {@link Instruction}s.
+ *
+ * @author Simon
+ * @author Azarias
+ */
+public class Method {
+
+    public static final int PUBLIC = 0x0001;
+    public static final int PRIVATE = 0x0002;
+    public static final int STATIC = 0x0008;
+
+    final String name;
+    final String descriptor;
+    final int access;
+    final List<Instruction> code = new ArrayList<>();
+    int maxLocals;
+
+    public Method(String name, String descriptor, int access) {
+        this.name = name;
+        this.descriptor = descriptor;
+        this.access = access;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDescriptor() {
+        return descriptor;
+    }
+
+    /**
+     * @return the access flags as Jasmin writes them, e.g. "public static".
+     */
+    public String modifiers() {
+        StringBuilder text = new StringBuilder((access & PRIVATE) != 0 ? "private" : "public");
+        if ((access & STATIC) != 0) {
+            text.append(" static");
+        }
+        return text.toString();
+    }
+
+    public void add(Instruction instruction) {
+        code.add(instruction);
+    }
+
+    public List<Instruction> getCode() {
+        return code;
+    }
+
+    public int getMaxLocals() {
+        return maxLocals;
+    }
+
+    public void setMaxLocals(int maxLocals) {
+        this.maxLocals = maxLocals;
+    }
+
+    /**
+     * The number of local variable slots the code needs: the largest of the
+     * value set by the code generator and the highest slot actually used.
+     *
+     * @return the value for the method's max_locals.
+     */
+    public int maxLocals() {
+        int max = maxLocals;
+        for (Instruction ins : code) {
+            max = Math.max(max, ins.slot() + 1);
+        }
+        return max;
+    }
+
+    /**
+     * Index of each label in the code.
+     */
+    Map<Label, Integer> labelIndex() {
+        Map<Label, Integer> index = new HashMap<>();
+        for (int i = 0; i < code.size(); i++) {
+            Instruction ins = code.get(i);
+            if (ins instanceof Instruction.Mark) {
+                index.put(((Instruction.Mark) ins).label, i);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Labels an instruction can jump to.
+     */
+    static List<Label> targets(Instruction ins) {
+        List<Label> targets = new ArrayList<>();
+        if (ins instanceof Instruction.Jump) {
+            targets.add(((Instruction.Jump) ins).target);
+        } else if (ins instanceof Instruction.Switch) {
+            Instruction.Switch sw = (Instruction.Switch) ins;
+            if (sw.table != null) {
+                targets.addAll(Arrays.asList(sw.table));
+            } else {
+                targets.addAll(sw.cases.values());
+            }
+            targets.add(sw.defaultLabel);
+        }
+        return targets;
+    }
+
+    /**
+     * Work out the deepest the operand stack gets by following every path
+     * through the code. The depth where paths join is the same whichever way
+     * it is reached, so each instruction only needs to be visited once.
+     *
+     * @return the value for the method's max_stack.
+     */
+    public int maxStack() {
+        Map<Label, Integer> labels = labelIndex();
+        int[] depth = new int[code.size() + 1];
+        Arrays.fill(depth, -1);
+        Deque<Integer> work = new ArrayDeque<>();
+        depth[0] = 0;
+        work.push(0);
+        int max = 0;
+        while (!work.isEmpty()) {
+            int i = work.pop();
+            if (i >= code.size()) {
+                continue;
+            }
+            Instruction ins = code.get(i);
+            int after = depth[i] + ins.stackEffect();
+            max = Math.max(max, after);
+            for (Label target : targets(ins)) {
+                Integer t = labels.get(target);
+                if (t != null && depth[t] < 0) {
+                    depth[t] = after;
+                    work.push(t);
+                }
+            }
+            if ((ins.opcode == null || !ins.opcode.endsBlock()) && depth[i + 1] < 0) {
+                depth[i + 1] = after;
+                work.push(i + 1);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Drop the instructions no path through the code reaches, such as those
+     * after a 'halt'. Labels are kept. The split verifier wants a frame for
+     * every block, even a dead one, so it is simpler not to have any.
+     */
+    public void removeUnreachable() {
+        Map<Label, Integer> labels = labelIndex();
+        boolean[] reached = new boolean[code.size() + 1];
+        Deque<Integer> work = new ArrayDeque<>();
+        reached[0] = true;
+        work.push(0);
+        while (!work.isEmpty()) {
+            int i = work.pop();
+            if (i >= code.size()) {
+                continue;
+            }
+            Instruction ins = code.get(i);
+            List<Integer> next = new ArrayList<>();
+            for (Label target : targets(ins)) {
+                Integer t = labels.get(target);
+                if (t != null) {
+                    next.add(t);
+                }
+            }
+            if (ins.opcode == null || !ins.opcode.endsBlock()) {
+                next.add(i + 1);
+            }
+            for (int n : next) {
+                if (!reached[n]) {
+                    reached[n] = true;
+                    work.push(n);
+                }
+            }
+        }
+        List<Instruction> live = new ArrayList<>();
+        for (int i = 0; i < code.size(); i++) {
+            if (reached[i] || code.get(i) instanceof Instruction.Mark) {
+                live.add(code.get(i));
+            }
+        }
+        code.clear();
+        code.addAll(live);
+    }
+
+    /**
+     * Write the code as Jasmin assembler.
+     *
+     * @param out where to print it.
+     */
+    public void print(PrintStream out) {
+        code.forEach(out::print);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package sal.small;
+
+/**
+ * The JVM instructions the code generator uses, with their byte code, the kind
+ * of operand they take and their effect on the operand stack.
+ *
+ * Constants are named after the Jasmin mnemonic, so {@code iconst_m1} is
+ * {@link #ICONST_M1}.
+ *
+ * @author Simon
+ * @author Azarias
+ */
+public enum Opcode {
+
+    NOP(0x00, Kind.NONE, 0, 0),
+    ACONST_NULL(0x01, Kind.NONE, 0, 1),
+    ICONST_M1(0x02, Kind.NONE, 0, 1),
+    ICONST_0(0x03, Kind.NONE, 0, 1),
+    ICONST_1(0x04, Kind.NONE, 0, 1),
+    ICONST_2(0x05, Kind.NONE, 0, 1),
+    ICONST_3(0x06, Kind.NONE, 0, 1),
+    ICONST_4(0x07, Kind.NONE, 0, 1),
+    ICONST_5(0x08, Kind.NONE, 0, 1),
+    BIPUSH(0x10, Kind.BYTE, 0, 1),
+    SIPUSH(0x11, Kind.SHORT, 0, 1),
+    LDC(0x12, Kind.CONSTANT, 0, 1),
+    LDC_W(0x13, Kind.CONSTANT, 0, 1),
+    ILOAD(0x15, Kind.LOCAL, 0, 1),
+    ALOAD(0x19, Kind.LOCAL, 0, 1),
+    ILOAD_0(0x1a, Kind.NONE, 0, 1),
+    ILOAD_1(0x1b, Kind.NONE, 0, 1),
+    ILOAD_2(0x1c, Kind.NONE, 0, 1),
+    ILOAD_3(0x1d, Kind.NONE, 0, 1),
+    ALOAD_0(0x2a, Kind.NONE, 0, 1),
+    ALOAD_1(0x2b, Kind.NONE, 0, 1),
+    ALOAD_2(0x2c, Kind.NONE, 0, 1),
+    ALOAD_3(0x2d, Kind.NONE, 0, 1),
+    IALOAD(0x2e, Kind.NONE, 2, 1),
+    AALOAD(0x32, Kind.NONE, 2, 1),
+    ISTORE(0x36, Kind.LOCAL, 1, 0),
+    ASTORE(0x3a, Kind.LOCAL, 1, 0),
+    ISTORE_0(0x3b, Kind.NONE, 1, 0),
+    ISTORE_1(0x3c, Kind.NONE, 1, 0),
+    ISTORE_2(0x3d, Kind.NONE, 1, 0),
+    ISTORE_3(0x3e, Kind.NONE, 1, 0),
+    ASTORE_0(0x4b, Kind.NONE, 1, 0),
+    ASTORE_1(0x4c, Kind.NONE, 1, 0),
+    ASTORE_2(0x4d, Kind.NONE, 1, 0),
+    ASTORE_3(0x4e, Kind.NONE, 1, 0),
+    IASTORE(0x4f, Kind.NONE, 3, 0),
+    AASTORE(0x53, Kind.NONE, 3, 0),
+    POP(0x57, Kind.NONE, 1, 0),
+    DUP(0x59, Kind.NONE, 1, 2),
+    SWAP(0x5f, Kind.NONE, 2, 2),
+    IADD(0x60, Kind.NONE, 2, 1),
+    ISUB(0x64, Kind.NONE, 2, 1),
+    IMUL(0x68, Kind.NONE, 2, 1),
+    IDIV(0x6c, Kind.NONE, 2, 1),
+    IREM(0x70, Kind.NONE, 2, 1),
+    INEG(0x74, Kind.NONE, 1, 1),
+    ISHL(0x78, Kind.NONE, 2, 1),
+    ISHR(0x7a, Kind.NONE, 2, 1),
+    IUSHR(0x7c, Kind.NONE, 2, 1),
+    IAND(0x7e, Kind.NONE, 2, 1),
+    IOR(0x80, Kind.NONE, 2, 1),
+    IXOR(0x82, Kind.NONE, 2, 1),
+    IINC(0x84, Kind.IINC, 0, 0),
+    IFEQ(0x99, Kind.JUMP, 1, 0),
+    IFNE(0x9a, Kind.JUMP, 1, 0),
+    IFLT(0x9b, Kind.JUMP, 1, 0),
+    IFGE(0x9c, Kind.JUMP, 1, 0),
+    IFGT(0x9d, Kind.JUMP, 1, 0),
+    IFLE(0x9e, Kind.JUMP, 1, 0),
+    IF_ICMPEQ(0x9f, Kind.JUMP, 2, 0),
+    IF_ICMPNE(0xa0, Kind.JUMP, 2, 0),
+    IF_ICMPLT(0xa1, Kind.JUMP, 2, 0),
+    IF_ICMPGE(0xa2, Kind.JUMP, 2, 0),
+    IF_ICMPGT(0xa3, Kind.JUMP, 2, 0),
+    IF_ICMPLE(0xa4, Kind.JUMP, 2, 0),
+    GOTO(0xa7, Kind.JUMP, 0, 0),
+    TABLESWITCH(0xaa, Kind.SWITCH, 1, 0),
+    LOOKUPSWITCH(0xab, Kind.SWITCH, 1, 0),
+    IRETURN(0xac, Kind.NONE, 1, 0),
+    ARETURN(0xb0, Kind.NONE, 1, 0),
+    RETURN(0xb1, Kind.NONE, 0, 0),
+    GETSTATIC(0xb2, Kind.FIELD, 0, 0),
+    PUTSTATIC(0xb3, Kind.FIELD, 0, 0),
+    INVOKEVIRTUAL(0xb6, Kind.METHOD, 1, 0),
+    INVOKESPECIAL(0xb7, Kind.METHOD, 1, 0),
+    INVOKESTATIC(0xb8, Kind.METHOD, 0, 0),
+    NEW(0xbb, Kind.CLASS, 0, 1),
+    NEWARRAY(0xbc, Kind.NEWARRAY, 1, 1),
+    ANEWARRAY(0xbd, Kind.CLASS, 1, 1),
+    ARRAYLENGTH(0xbe, Kind.NONE, 1, 1),
+    ATHROW(0xbf, Kind.NONE, 1, 0),
+    WIDE(0xc4, Kind.NONE, 0, 0);
+
+    /**
+     * What follows the opcode byte in the class file.
+     */
+    public enum Kind {
+        NONE, // nothing
+        BYTE, // signed byte
+        SHORT, // signed short
+        CONSTANT, // constant pool index of an int or string
+        LOCAL, // local variable number
+        IINC, // local variable number and increment
+        JUMP, // offset of a label
+        SWITCH, // padded jump table
+        FIELD, // constant pool index of a field, stack effect from its type
+        METHOD, // constant pool index of a method, stack effect from its descriptor
+        CLASS, // constant pool index of a class
+        NEWARRAY // primitive array type code
+    }
+
+    final int code;
+    final Kind kind;
+    final int pops;
+    final int pushes;
+
+    Opcode(int code, Kind kind, int pops, int pushes) {
+        this.code = code;
+        this.kind = kind;
+        this.pops = pops;
+        this.pushes = pushes;
+    }
+
+    /**
+     * Find the opcode for a Jasmin mnemonic.
+     *
+     * @param mnemonic e.g. "iload_1", "invokestatic".
+     * @return the opcode or null if it isn't one the compiler knows.
+     */
+    public static Opcode of(String mnemonic) {
+        try {
+            return valueOf(mnemonic.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * True for instructions after which execution never reaches the next one.
+     */
+    public boolean endsBlock() {
+        return this == GOTO || kind == Kind.SWITCH
+                || this == RETURN || this == IRETURN || this == ARETURN || this == ATHROW;
+    }
+
+    /**
+     * Number of stack words used by a field or method type.
+     *
+     * @param type a descriptor such as "I", "V" or "Ljava/lang/String;".
+     * @return 0 for void, 2 for long and double, 1 otherwise.
+     */
+    static int size(String type) {
+        switch (type.charAt(0)) {
+            case 'V':
+                return 0;
+            case 'J':
+            case 'D':
+                return 2;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Change in the depth of the operand stack caused by this instruction.
+     *
+     * @param operand the instruction's operand, needed by field and method
+     * instructions whose effect depends on a type.
+     * @return words pushed less words popped.
+     */
+    public int stackEffect(String operand) {
+        if (kind == Kind.FIELD) {
+            String type = operand.substring(operand.indexOf(' ') + 1).trim();
+            return this == GETSTATIC ? size(type) : -size(type);
+        }
+        if (kind == Kind.METHOD) {
+            int start = operand.indexOf('(');
+            int end = operand.indexOf(')');
+            int words = 0;
+            for (int i = start + 1; i < end; i++) {
+                char ch = operand.charAt(i);
+                words += size(operand.substring(i));
+                while (ch == '[') {
+                    ch = operand.charAt(++i);
+                }
+                if (ch == 'L') {
+                    i = operand.indexOf(';', i);
+                }
+            }
+            return size(operand.substring(end + 1)) - words - pops;
+        }
+        return pushes - pops;
+    }
+}
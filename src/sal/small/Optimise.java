@@ -0,0 +1,57 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package sal.small;
+
+/**
+ * Runs the optimisation passes over the syntax tree between parsing and code
+ * generation.
+ *
+ * @author Simon
+ * @author Azarias
+ */
+public class Optimise {
+
+    private static boolean enabled = true;
+
+    /**
+     * @param on false to generate code straight from the parsed tree (-O0).
+     */
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Optimise a program.
+     *
+     * @param tree AST of the program, which may be changed.
+     * @return the optimised AST.
+     */
+    public static Tree<Token> program(Tree<Token> tree) {
+        if (!enabled || tree == null) {
+            return tree;
+        }
+        tree = Fold.program(tree);
+        tree = DeadCode.program(tree);
+        tree = Idioms.program(tree);
+        tree = Buffers.program(tree);
+        tree = Loops.program(tree);
+        tree = Gvn.program(tree);
+        return tree;
+    }
+}
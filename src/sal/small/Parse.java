@@ -46,6 +46,28 @@ public class Parse {
         return t;
     }
 
+    /**
+     * Start parsing a program a statement at a time, so each can be compiled
+     * and forgotten before the next is read.
+     */
+    public static void start() {
+        scan();
+    }
+
+    /**
+     * Parse the next top level statement of a program begun with
+     * {@link #start()}.
+     *
+     * @return AST for the statement, null at the end of the program.
+     */
+    public static Tree<Token> nextStatement() {
+        Tree<Token> t = statement();
+        if (t == null) {
+            mustBe(EOF);
+        }
+        return t;
+    }
+
     /**
      * Return a list of parsed statements. Grammar rule {@code statementList   : ( ifStatement | whileStatement  | doStatement
      * 											| printStatement | assignment | readStatement | ...   )* }
@@ -54,48 +76,57 @@ public class Parse {
      */
     public static Tree<Token> statementList() {
         Tree<Token> stList = list(STATEMENTLIST);
-        for (;;) {
-            while (skipToken(SEMICOLON)) /* do nothing */;
-            Tree<Token> aStatement;	// next statement
-            Token token = currentToken();
-            switch (token) {
-                case IF:
-                    aStatement = ifStatement();
-                    break;
-                case WHILE:
-                    aStatement = whileStatement();
-                    break;
-                case DO:
-                    aStatement = doStatement();
-                    break;
-                case PRINT:
-                    aStatement = printStatement();
-                    break;
-                case IDENTIFIER:
-                    aStatement = assignment();
-                    break;
-                case FOR:
-                    aStatement = forStatement();
-                    break;
-                case READ:
-                    aStatement = readStatement();
-                    break;
-                case SWITCH:
-                    aStatement = switchStatement();
-                    break;
-                case HALT:
-                case BREAK:
-                case CONTINUE:
-                    aStatement = leaf(token);
-                    scan();
-                    break;
-
-                default:
-                    return stList;	// exit method with list
-            }
-            // add next statement to list
+        for (Tree<Token> aStatement = statement(); aStatement != null; aStatement = statement()) {
             stList.addChild(aStatement);
         }
+        return stList;
+    }
+
+    /**
+     * Parse one statement, after any empty ones.
+     *
+     * @return AST for the statement, null if the next token can't start one.
+     */
+    private static Tree<Token> statement() {
+        while (skipToken(SEMICOLON)) /* do nothing */;
+        Tree<Token> aStatement;	// next statement
+        Token token = currentToken();
+        switch (token) {
+            case IF:
+                aStatement = ifStatement();
+                break;
+            case WHILE:
+                aStatement = whileStatement();
+                break;
+            case DO:
+                aStatement = doStatement();
+                break;
+            case PRINT:
+                aStatement = printStatement();
+                break;
+            case IDENTIFIER:
+                aStatement = assignment();
+                break;
+            case FOR:
+                aStatement = forStatement();
+                break;
+            case READ:
+                aStatement = readStatement();
+                break;
+            case SWITCH:
+                aStatement = switchStatement();
+                break;
+            case HALT:
+            case BREAK:
+            case CONTINUE:
+                aStatement = leaf(token);
+                scan();
+                break;
+
+            default:
+                return null;	// not a statement
+        }
+        return aStatement;
     }
 
     /**
@@ -437,9 +468,21 @@ public class Parse {
                 t = leaf(token, value);
                 break;
             case NUMBER: {
-                if (value.charAt(0) == '#') {
-                    // convert string after '#' to binary, then back to decimal as a string
-                    value = Long.toString(Long.valueOf(value.substring(1), 16));
+                try {
+                    if (value.charAt(0) == '#') {
+                        // convert string after '#' to binary, then back to decimal as a string
+                        long bits = Long.parseLong(value.substring(1), 16);
+                        if (bits > 0xFFFFFFFFL) {
+                            throw new NumberFormatException(value);
+                        }
+                        value = Long.toString(bits);
+                    } else {
+                        Integer.parseInt(value);
+                    }
+                } catch (NumberFormatException e) {
+                    // Code.intValue would wrap it round to some other int
+                    parseError("Number %s is too large\n", value);
+                    value = "0";
                 }
                 t = leaf(token, value);
                 break;
@@ -462,6 +505,11 @@ public class Parse {
                 break;
             case MINUS:
                 scan();
+                if (currentToken() == NUMBER && currentText().equals("2147483648")) {
+                    // the least int, whose digits alone are too large
+                    scan();
+                    return leaf(NUMBER, "-2147483648");
+                }
                 return list(NEGATE, term());
             case TO_INT:
             case TO_STR:
@@ -0,0 +1,318 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package sal.small;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static sal.small.Descriptor.*;
+import static sal.small.Scope.*;
+import static sal.small.Token.*;
+
+/**
+ * Generates the code of main on several threads (-parallel): the top level
+ * statements are cut into regions of about the same size, and each region is
+ * generated into a buffer of its own by a compilation of its own.
+ *
+ * A region needs the top level variables of the regions before it, with the
+ * slots and types they would have. Those are worked out from the tree
+ * beforehand (the names assigned at the top level, with {@link Types}) and
+ * declared before the region's code is generated. The labels of each region
+ * are numbered from 0 and renumbered when the buffers are joined, so the
+ * class is the same as when main is generated in one go.
+ *
+ * If a region doesn't declare the variables expected of it, or there are
+ * errors, nothing is kept and main is generated in one go, which gives the
+ * usual messages.
+ *
+ * @author Simon
+ * @author Azarias
+ */
+class Regions {
+
+    /**
+     * Fewest tree nodes worth a thread.
+     */
+    static final int MIN_WEIGHT = 20000;
+
+    private static boolean enabled = false;
+
+    /**
+     * Top level statements generated by one thread, from and to are indexes
+     * of the statements.
+     */
+    private static class Region {
+
+        final int from;
+        int to;
+        // top level variables declared before the region, and by the end of it (null if not known)
+        final Map<String, Type> before;
+        Map<String, Type> after;
+
+        final Method code = new Method("main", "([Ljava/lang/String;)V", Method.PUBLIC | Method.STATIC);
+        int[] starts;
+        Map<String, Type> variables;
+        int labels;
+        int maxLocal;
+        boolean ok;
+
+        Region(int from, Map<String, Type> before) {
+            this.from = from;
+            this.before = before;
+        }
+    }
+
+    /**
+     * @param on true to generate main on several threads.
+     */
+    static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Generate the code of main's statements, on several threads if there
+     * are enough of them.
+     *
+     * @param statements the top level statements.
+     * @param main gets the code.
+     * @param starts set to where each statement starts in main, and the end.
+     * @return the top level variables and their types, as
+     * {@link Scope#variables()} gives them, or null if main has to be
+     * generated in one go.
+     */
+    static Map<String, Type> generate(List<Tree<Token>> statements, Method main, int[] starts) {
+        List<Region> regions = regions(statements);
+        if (regions.size() < 2) {
+            return null;
+        }
+        String className = getGlobal("CLASS NAME");
+        List<CompletableFuture<Void>> running = new ArrayList<>();
+        for (Region region : regions.subList(1, regions.size())) {
+            running.add(CompletableFuture.runAsync(() -> generate(region, statements, className)));
+        }
+        generate(regions.get(0), statements, className);
+        try {
+            running.forEach(CompletableFuture::join);
+        } catch (CompletionException e) {
+            // whatever went wrong happens again in one go, where it can be reported
+            return null;
+        }
+        for (Region region : regions) {
+            if (!region.ok) {
+                return null;
+            }
+        }
+        Compilation compilation = Compilation.current();
+        int maxLocal = getGlobal(MAX_LOCAL);
+        for (Region region : regions) {
+            renumber(region.code.getCode(), compilation.nextLabel);
+            compilation.nextLabel += region.labels;
+            for (int i = region.from; i < region.to; i++) {
+                starts[i] = main.getCode().size() + region.starts[i - region.from];
+            }
+            main.getCode().addAll(region.code.getCode());
+            maxLocal = Math.max(maxLocal, region.maxLocal);
+        }
+        starts[statements.size()] = main.getCode().size();
+        putGlobal(MAX_LOCAL, maxLocal);
+        return regions.get(regions.size() - 1).variables;
+    }
+
+    /**
+     * Cut the statements into regions. A region can only start where the top
+     * level variables are known.
+     */
+    private static List<Region> regions(List<Tree<Token>> statements) {
+        List<Region> regions = new ArrayList<>();
+        int[] weights = new int[statements.size()];
+        long total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = weight(statements.get(i));
+            total += weights[i];
+        }
+        int count = (int) Math.min(Runtime.getRuntime().availableProcessors(), total / MIN_WEIGHT);
+        if (count < 2) {
+            return regions;
+        }
+        long size = total / count;
+        Types types = new Types();
+        Map<String, Type> declared = new LinkedHashMap<>();
+        boolean known = true;
+        Region region = new Region(0, new LinkedHashMap<>());
+        long weight = 0;
+        for (int i = 0; i < weights.length; i++) {
+            if (known && weight >= size && regions.size() < count - 1) {
+                region.to = i;
+                region.after = new LinkedHashMap<>(declared);
+                regions.add(region);
+                region = new Region(i, region.after);
+                weight = 0;
+            }
+            weight += weights[i];
+            known = known && declare(statements.get(i), types, declared);
+        }
+        region.to = weights.length;
+        region.after = known ? declared : null;
+        regions.add(region);
+        return regions;
+    }
+
+    /**
+     * Note the variables a top level statement declares in main's scope.
+     *
+     * @return false if their types can't be told.
+     */
+    private static boolean declare(Tree<Token> statement, Types types, Map<String, Type> declared) {
+        if (statement == null) {
+            return true;
+        }
+        switch (statement.token()) {
+            case ASSIGN: {
+                String name = statement.child(0).toString();
+                if (declared.containsKey(name)) {
+                    return true;
+                }
+                Type type = types.type(statement.child(1));
+                if (type == null) {
+                    return false;
+                }
+                types.declareFirst(name, type);
+                declared.put(name, type);
+                return true;
+            }
+            case READ_STR:
+                types.declareFirst(statement.toString(), Type.STRING);
+                declared.putIfAbsent(statement.toString(), Type.STRING);
+                return true;
+            case STATEMENTLIST:
+                for (Tree<Token> child : statement.allChildren()) {
+                    if (!declare(child, types, declared)) {
+                        return false;
+                    }
+                }
+                return true;
+            default:
+                // anything else declares its variables in a scope of its own
+                return true;
+        }
+    }
+
+    /**
+     * @return the number of nodes of a tree, for how long its code takes.
+     */
+    private static int weight(Tree<Token> tree) {
+        if (tree == null || tree.isLeaf()) {
+            return 1;
+        }
+        int weight = 1;
+        for (Tree<Token> child : tree.allChildren()) {
+            weight += weight(child);
+        }
+        return weight;
+    }
+
+    /**
+     * Generate a region as main would: in a scope after the arguments and
+     * the variables of the regions before.
+     */
+    private static void generate(Region region, List<Tree<Token>> statements, String className) {
+        try (Compilation compilation = Compilation.begin(className, new PrintStream(OutputStream.nullOutputStream()))) {
+            putGlobal("CLASS NAME", className);
+            Code.setMethod(region.code);
+            beginScope();
+            newLocal("ARGS TO MAIN", Type.ARRAY_STRING);
+            region.before.forEach(Scope::newLocal);
+            region.starts = new int[region.to - region.from];
+            for (int i = region.from; i < region.to; i++) {
+                region.starts[i - region.from] = region.code.getCode().size();
+                CodeGen.writeStatementCode(statements.get(i));
+            }
+            region.ok = compilation.errorCount() == 0 && declares(compilation.currentScope, region.after);
+            region.variables = variables();
+            endScope();
+            region.labels = compilation.nextLabel;
+            region.maxLocal = getGlobal(MAX_LOCAL);
+        }
+    }
+
+    /**
+     * Check main's scope ends up as the next region expects: the arguments
+     * and the variables expected, in that order, in the slots after each
+     * other.
+     *
+     * @param expected the variables, null if the region is the last.
+     */
+    private static boolean declares(Scope scope, Map<String, Type> expected) {
+        if (expected == null) {
+            return true;
+        }
+        List<String> names = new ArrayList<>();
+        names.add("ARGS TO MAIN");
+        names.addAll(expected.keySet());
+        List<String> declared = new ArrayList<>();
+        scope.forEach((name, d) -> {
+            if (d instanceof Variable) {
+                declared.add(name);
+            }
+        });
+        if (!declared.equals(names)) {
+            return false;
+        }
+        for (int slot = 1; slot < names.size(); slot++) {
+            Variable v = (Variable) scope.get(names.get(slot));
+            if (!v.toString().equals(Integer.toString(slot)) || v.getType() != expected.get(names.get(slot))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add to the numbers of a region's labels those of the labels before it.
+     * Jumps keep their target's name as it was made, so they are made again.
+     */
+    private static void renumber(List<Instruction> code, int first) {
+        if (first == 0) {
+            return;
+        }
+        Set<Label> labels = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Instruction ins : code) {
+            if (ins instanceof Instruction.Mark) {
+                labels.add(((Instruction.Mark) ins).label);
+            }
+            labels.addAll(Method.targets(ins));
+        }
+        for (Label label : labels) {
+            String name = label.getValue();
+            int hash = name.lastIndexOf('#');
+            label.set(name.substring(0, hash + 1) + (Integer.parseInt(name.substring(hash + 1)) + first));
+        }
+        code.replaceAll(ins -> ins instanceof Instruction.Jump
+                ? new Instruction.Jump(ins.mnemonic, ((Instruction.Jump) ins).target) : ins);
+    }
+}
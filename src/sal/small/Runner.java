@@ -0,0 +1,86 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package sal.small;
+
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+
+/**
+ * Runs a compiled program in the compiler's JVM (-run), from the bytes of its
+ * class, so nothing is written to disk and no other JVM is started.
+ *
+ * Each program gets a class loader of its own, whose parent loaded the
+ * compiler, so the program finds sal.Library and can be run again after
+ * being compiled again.
+ *
+ * @author Simon
+ * @author Azarias
+ */
+class Runner extends ClassLoader {
+
+    private final String className;
+    private final byte[] bytes;
+
+    private Runner(String className, byte[] bytes) {
+        super(Runner.class.getClassLoader());
+        this.className = className;
+        this.bytes = bytes;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        if (!name.equals(className)) {
+            throw new ClassNotFoundException(name);
+        }
+        return defineClass(name, bytes, 0, bytes.length);
+    }
+
+    /**
+     * Load a program's class and call its main.
+     *
+     * @param className name of the class.
+     * @param bytes the class file.
+     * @param args the arguments for main.
+     * @param err where to report a program which fails.
+     * @return the exit status, 0 if main returned.
+     */
+    static int run(String className, byte[] bytes, String[] args, PrintStream err) {
+        try {
+            java.lang.reflect.Method main = new Runner(className, bytes).loadClass(className).getMethod("main", String[].class);
+            main.invoke(null, (Object) args);
+            return 0;
+        } catch (InvocationTargetException e) {
+            // as the java command would report it, without the frames of the compiler
+            Throwable cause = e.getCause();
+            StackTraceElement[] trace = cause.getStackTrace();
+            int end = trace.length;
+            while (end > 0 && !trace[end - 1].getClassName().equals(className)) {
+                end--;
+            }
+            if (end > 0) {
+                cause.setStackTrace(Arrays.copyOf(trace, end));
+            }
+            err.printf("Exception in %s : ", className);
+            cause.printStackTrace(err);
+            return 1;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            err.printf("Couldn\'t run %s : %s\n", className, e);
+            return 1;
+        } finally {
+            System.out.flush();
+        }
+    }
+}
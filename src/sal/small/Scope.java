@@ -19,14 +19,17 @@ package sal.small;
  */
 import static sal.small.Descriptor.*;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * 
  * @author Simon
  * @author azarias
  */
-public class Scope extends HashMap<String, Descriptor> {
+public class Scope extends LinkedHashMap<String, Descriptor> {
 
     /**
      * Some names refer to values the compiler needs to know which are not in
@@ -42,28 +45,46 @@ public class Scope extends HashMap<String, Descriptor> {
 
     Scope previous;
 
-    static Scope globalScope = new Scope();
-    static Scope currentScope = null;
+    // the names here beginning with UPGRADE, so a new scope needn't look at every name
+    private final List<String> upgrades = new ArrayList<>();
 
-    public Scope() {
+    /**
+     * Open a scope of a compilation, inside its current one.
+     */
+    Scope(Compilation compilation) {
         // link to previous Scope
-        Scope prev = currentScope;
-        this.previous = currentScope;
-        currentScope = this;
+        Scope prev = compilation.currentScope;
+        this.previous = prev;
+        compilation.currentScope = this;
         if (prev == null) {
-            newValue(NEXT_LOCAL, 0);
-            newValue(MAX_LOCAL, 0);
+            put(NEXT_LOCAL, new Value<>(0));
+            put(MAX_LOCAL, new Value<>(0));
         } else {
-            /* check for keys which should be copied to the new scope */
-            prev.keySet().stream().filter((k) -> (k.startsWith(UPGRADE))).forEachOrdered((k) -> {
-                currentScope.put(k, prev.get(k));
+            /* copy the keys which should be copied to the new scope */
+            prev.upgrades.forEach((k) -> {
+                put(k, prev.get(k));
             });
         }
     }
 
+    @Override
+    public Descriptor put(String key, Descriptor value) {
+        if (key.startsWith(UPGRADE) && !containsKey(key)) {
+            upgrades.add(key);
+        }
+        return super.put(key, value);
+    }
+
+    /**
+     * The scopes belong to the compilation running on this thread.
+     */
+    private static Scope currentScope() {
+        return Compilation.current().currentScope;
+    }
+
     // Users are not directly aware of scope objects: just entering/leaving 
     public static void beginScope() {
-        new Scope();
+        new Scope(Compilation.current());
     }
 
     public static void endScope() {
@@ -73,15 +94,16 @@ public class Scope extends HashMap<String, Descriptor> {
         if (nextLocal > maxLocal) {
             putGlobal(MAX_LOCAL, nextLocal);
         }
-        currentScope = currentScope.previous;
+        Compilation compilation = Compilation.current();
+        compilation.currentScope = compilation.currentScope.previous;
     }
 
     public static <T> void putGlobal(String key, T value) {
-        globalScope.put(key, new Value<T>(value));
+        Compilation.current().globalScope.put(key, new Value<T>(value));
     }
 
     public static <V> V getGlobal(String key) {
-        Descriptor d = globalScope.get(key);
+        Descriptor d = Compilation.current().globalScope.get(key);
         return (d != null && d instanceof Value) ? (V) ((Value) d).getValue() : null;
     }
 
@@ -92,7 +114,7 @@ public class Scope extends HashMap<String, Descriptor> {
      * defaultvalue.
      */
     public static Descriptor getAny(String key, Descriptor defaultValue) {
-        for (Scope sc = currentScope; sc != null; sc = sc.previous) {
+        for (Scope sc = currentScope(); sc != null; sc = sc.previous) {
             Descriptor value = sc.get(key);
             if (value != null) {
                 return value;
@@ -125,7 +147,7 @@ public class Scope extends HashMap<String, Descriptor> {
      * @return
      */
     public static Scope getScope(String key) {
-        for (Scope sc = currentScope; sc != null; sc = sc.previous) {
+        for (Scope sc = currentScope(); sc != null; sc = sc.previous) {
             if (sc.containsKey(key)) {
                 return sc;
             }
@@ -138,7 +160,7 @@ public class Scope extends HashMap<String, Descriptor> {
      * @return
      */
     public static Scope getScope(String key, Descriptor value) {
-        for (Scope sc = currentScope; sc != null; sc = sc.previous) {
+        for (Scope sc = currentScope(); sc != null; sc = sc.previous) {
             if (sc.get(key).equals(value)) {
                 return sc;
             }
@@ -150,7 +172,7 @@ public class Scope extends HashMap<String, Descriptor> {
         Scope sc = getScope(key);
         boolean found = (sc != null);
         if (!found) {
-            sc = currentScope;
+            sc = currentScope();
         }
         sc.put(key, value);
         return found;
@@ -158,7 +180,7 @@ public class Scope extends HashMap<String, Descriptor> {
 
     ///////////////////////////// Get/Create objects of various types  /////
     public static <V> void newValue(String key, V value) {
-        currentScope.put(key, new Value<V>(value));
+        currentScope().put(key, new Value<V>(value));
     }
 
     public static <V> V getValue(String key) {
@@ -168,7 +190,7 @@ public class Scope extends HashMap<String, Descriptor> {
 
     public static Label newLabel(String key) {
         Label d = Label(key.replace(' ', '_'));
-        currentScope.put(key, d);
+        currentScope().put(key, d);
         return d;
     }
 
@@ -184,10 +206,38 @@ public class Scope extends HashMap<String, Descriptor> {
         newValue(NEXT_LOCAL, localVal);
         // now create the local variable
         Variable v = Local(nextLocal.toString(), typeName);
-        currentScope.put(key, v);
+        currentScope().put(key, v);
         return v;
     }
 
+    /**
+     * Make a name refer to a static field of the generated class.
+     *
+     * @param key the name.
+     * @param asmName the field as the assembler refers to it, "Class/field".
+     * @param typeName type of the field.
+     * @return the new variable.
+     */
+    public static Variable newStatic(String key, String asmName, Type typeName) {
+        Variable v = Static(asmName, typeName);
+        currentScope().put(key, v);
+        return v;
+    }
+
+    /**
+     * @return the variables declared in the current scope, with their types,
+     * in the order they were declared.
+     */
+    public static Map<String, Type> variables() {
+        Map<String, Type> variables = new LinkedHashMap<>();
+        currentScope().forEach((name, d) -> {
+            if (d instanceof Variable) {
+                variables.put(name, ((Variable) d).getType());
+            }
+        });
+        return variables;
+    }
+
     public static Variable getVariable(String key) {
         Descriptor d = getAny(key);
         return (d != null && d instanceof Descriptor.Variable) ? (Variable) d : null;
@@ -196,14 +246,21 @@ public class Scope extends HashMap<String, Descriptor> {
     public static Variable newVariable(String key, Type type) {
         Variable v = getVariable(key);
         if (v == null) {
-            v = newLocal(key, type);
+            Scope fields = Compilation.current().fields;
+            if (fields != null && currentScope().previous == fields) {
+                // a top level variable of a streamed program, which all its parts share
+                v = Static(getGlobal("CLASS NAME") + "/" + key, type);
+                fields.put(key, v);
+            } else {
+                v = newLocal(key, type);
+            }
         }
         return v;
     }
 
     public static void dump(String... strList) {
         int depth = 0;
-        for (Scope s = currentScope; s != null; s = s.previous) {
+        for (Scope s = currentScope(); s != null; s = s.previous) {
             System.out.printf("At level %d\n", depth++);
             for (String name : strList) {
                 Descriptor d = s.get(name);
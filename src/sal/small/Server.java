@@ -0,0 +1,172 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package sal.small;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * A compiler which stays up (-server), so its classes are loaded, its token
+ * patterns compiled and its code warmed up by the JIT once, not every time a
+ * program is compiled. {@link Client} sends it command lines over a Unix
+ * domain socket.
+ *
+ * Some options are statics, so one command is run at a time (with -j its
+ * files are still compiled at once). While it runs System.out and System.err
+ * go to the client, as Jasmin prints to them.
+ *
+ * @author Simon
+ * @author Azarias
+ */
+class Server {
+
+    /**
+     * Compile for clients until one asks to stop.
+     *
+     * @param socket file of the socket, removed when done.
+     * @return the exit status.
+     */
+    static int serve(Path socket) {
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(socket);
+        if (Files.exists(socket)) {
+            // a server which didn't stop cleanly leaves its socket behind
+            try {
+                SocketChannel.open(address).close();
+                System.err.printf("A compiler is already serving on %s\n", socket);
+                return 1;
+            } catch (IOException e) {
+                try {
+                    Files.delete(socket);
+                } catch (IOException f) {
+                    System.err.printf("Couldn\'t remove %s : %s\n", socket, f.getMessage());
+                    return 1;
+                }
+            }
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(address);
+            Token.newLexer();
+            System.err.printf("Compiling for clients on %s\n", socket);
+            boolean serving = true;
+            while (serving) {
+                try (SocketChannel client = server.accept()) {
+                    serving = command(client);
+                } catch (IOException e) {
+                    System.err.printf("Lost a client : %s\n", e.getMessage());
+                }
+            }
+            return 0;
+        } catch (IOException e) {
+            System.err.printf("Couldn\'t serve on %s : %s\n", socket, e.getMessage());
+            return 1;
+        } finally {
+            try {
+                Files.deleteIfExists(socket);
+            } catch (IOException e) {
+                // nothing more to do
+            }
+        }
+    }
+
+    /**
+     * Run a client's command line.
+     *
+     * @return false if the client asked the server to stop.
+     */
+    private static boolean command(SocketChannel client) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)));
+        Path directory = Paths.get(in.readUTF());
+        int count = in.readInt();
+        if (count == Client.STOP) {
+            exit(out, 0);
+            return false;
+        }
+        String[] args = new String[count];
+        for (int i = 0; i < count; i++) {
+            args[i] = in.readUTF();
+            if (Main.isOption(args[i], "-watch") || Main.isOption(args[i], "-run")) {
+                // watching would never finish, and no other client would be served;
+                // a program run here couldn't read the client's input
+                stream(out, Client.ERR).write((args[i] + " can\'t be used through the server\n").getBytes());
+                exit(out, 1);
+                return true;
+            }
+        }
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        PrintStream clientOut = new PrintStream(stream(out, Client.OUT), true);
+        PrintStream clientErr = new PrintStream(stream(out, Client.ERR), true);
+        int status;
+        System.setOut(clientOut);
+        System.setErr(clientErr);
+        try {
+            status = Main.run(args, directory);
+        } catch (RuntimeException | Error e) {
+            e.printStackTrace();
+            status = 1;
+        } finally {
+            clientOut.flush();
+            clientErr.flush();
+            System.setOut(stdout);
+            System.setErr(stderr);
+        }
+        exit(out, status);
+        return true;
+    }
+
+    /**
+     * @return a stream which sends what is written to it to the client.
+     */
+    private static OutputStream stream(DataOutputStream out, int stream) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                synchronized (out) {
+                    out.writeByte(stream);
+                    out.writeInt(len);
+                    out.write(b, off, len);
+                    out.flush();
+                }
+            }
+        };
+    }
+
+    private static void exit(DataOutputStream out, int status) throws IOException {
+        synchronized (out) {
+            out.writeByte(Client.EXIT);
+            out.writeInt(status);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package sal.small;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static sal.small.Code.*;
+import static sal.small.Descriptor.*;
+import static sal.small.Scope.*;
+import static sal.small.Token.*;
+
+/**
+ * Cuts a main method which has grown too big into parts.
+ *
+ * HotSpot won't JIT compile a method with more than 8000 bytes of code
+ * (HugeMethodLimit) and no method may be over 64K. When main is over the
+ * budget its top level statements are grouped into private static methods
+ * which main calls in turn. Variables used by more than one part become
+ * static fields, the others stay local to their part. A part containing a
+ * 'halt' returns false to make main stop too.
+ *
+ * Loops can also be moved out of main whatever its size. A hot loop left in
+ * main can only be compiled by on stack replacement, which gives worse code
+ * than compiling a method, and is tied to the whole of main; once it is a
+ * method of its own the JIT compiles and inlines it like any other.
+ *
+ * @author Simon
+ * @author Azarias
+ */
+public class Split {
+
+    /**
+     * HotSpot's HugeMethodLimit.
+     */
+    public static final int DEFAULT_BUDGET = 8000;
+
+    private static int budget = DEFAULT_BUDGET;
+    private static boolean outline = false;
+
+    /**
+     * @param bytes largest a method's code should be, 0 to never split.
+     */
+    public static void setBudget(int bytes) {
+        budget = bytes;
+    }
+
+    public static int getBudget() {
+        return budget;
+    }
+
+    /**
+     * @param on true to give each top level loop a method of its own.
+     */
+    public static void setOutline(boolean on) {
+        outline = on;
+    }
+
+    public static boolean isOutline() {
+        return outline;
+    }
+
+    /**
+     * Add the names of variables a statement uses.
+     */
+    private static void names(Tree<Token> tree, Set<String> into) {
+        if (tree == null) {
+            return;
+        }
+        if (tree.isLeaf()) {
+            if (tree.token() == IDENTIFIER || tree.token() == READ_STR) {
+                into.add(tree.toString());
+            }
+            return;
+        }
+        tree.allChildren().forEach(child -> names(child, into));
+    }
+
+    /**
+     * True if a statement can halt the program.
+     */
+    static boolean halts(Tree<Token> tree) {
+        if (tree == null) {
+            return false;
+        }
+        if (tree.token() == HALT) {
+            return true;
+        }
+        return !tree.isLeaf() && tree.allChildren().stream().anyMatch(Split::halts);
+    }
+
+    /**
+     * True if a top level statement is a loop: 'tantque', 'jusqua', or 'pour',
+     * which is its assignments followed by a 'tantque'. A 'pour' is moved
+     * with its assignments.
+     */
+    private static boolean isLoop(Tree<Token> statement) {
+        if (statement == null) {
+            return false;
+        }
+        switch (statement.token()) {
+            case WHILE:
+            case UNTIL:
+                return true;
+            case STATEMENTLIST: {
+                int n = statement.children();
+                return n > 0 && statement.child(n - 1) != null && statement.child(n - 1).token() == WHILE;
+            }
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * A run of top level statements, either left in main or moved to a
+     * method of its own.
+     */
+    private static class Group {
+
+        final List<Tree<Token>> statements = new ArrayList<>();
+        final String method;    // null to stay in main
+
+        Group(String method) {
+            this.method = method;
+        }
+    }
+
+    /**
+     * Split main if it is over budget, and move loops out of it if asked to.
+     *
+     * @param className name of the class being generated.
+     * @param statements the top level statements of the program.
+     * @param starts where each statement's code starts in main, with an extra
+     * entry for the end of the last one.
+     * @param main main as generated without splitting.
+     * @param variables the top level variables of main and their types.
+     * @return the class with main split up, or null if main is fine as it is.
+     */
+    static ClassFile split(String className, List<Tree<Token>> statements, int[] starts, Method main, Map<String, Type> variables) {
+        int[] offsets = ClassFile.offsets(main);
+        boolean over = budget > 0 && offsets[offsets.length - 1] > budget && statements.size() > 1;
+        if (!over && !outline) {
+            return null;
+        }
+        // fill each part, leaving room for variables becoming fields which take more bytes to reach
+        int room = budget - budget / 8;
+        List<Group> groups = new ArrayList<>();
+        Group group = null;
+        int size = 0;
+        int loops = 0;
+        int parts = 0;
+        for (int i = 0; i < statements.size(); i++) {
+            Tree<Token> statement = statements.get(i);
+            int bytes = offsets[starts[i + 1]] - offsets[starts[i]];
+            if (outline && isLoop(statement)) {
+                Group loop = new Group("loop" + ++loops);
+                loop.statements.add(statement);
+                groups.add(loop);
+                group = null;
+                continue;
+            }
+            if (group == null || over && size + bytes > room) {
+                group = new Group(over ? "part" + ++parts : null);
+                groups.add(group);
+                size = 0;
+            }
+            group.statements.add(statement);
+            size += bytes;
+        }
+        if (groups.stream().noneMatch(g -> g.method != null) || over && groups.size() < 2) {
+            return null;
+        }
+
+        // a variable used by more than one method has to be a field
+        Map<String, Integer> users = new HashMap<>();
+        Map<String, Set<String>> used = new HashMap<>();
+        for (Group g : groups) {
+            Set<String> names = used.computeIfAbsent(g.method == null ? "main" : g.method, m -> new HashSet<>());
+            g.statements.forEach(statement -> names(statement, names));
+        }
+        used.values().forEach(names -> names.forEach(name -> users.merge(name, 1, Integer::sum)));
+
+        ClassFile program = new ClassFile(className);
+        Method newMain = program.addMethod("main", "([Ljava/lang/String;)V", Method.PUBLIC | Method.STATIC);
+        Map<Group, Method> methods = new HashMap<>();
+        beginScope();   // holds the fields
+        variables.forEach((name, type) -> {
+            if (users.getOrDefault(name, 0) > 1) {
+                program.addField(name, type);
+                newStatic(name, className + "/" + name, type);
+            }
+        });
+        // the methods first, so they can't see main's locals
+        for (Group g : groups) {
+            if (g.method == null) {
+                continue;
+            }
+            boolean halts = g.statements.stream().anyMatch(Split::halts);
+            Method m = program.addMethod(g.method, halts ? "()Z" : "()V", Method.PRIVATE | Method.STATIC);
+            Code.setMethod(m);
+            putGlobal(MAX_LOCAL, 0);
+            beginScope();
+            g.statements.forEach(CodeGen::writeStatementCode);
+            endScope();
+            if (halts) {
+                loadInt(1);
+                emit("ireturn");
+            } else {
+                emit("return");
+            }
+            m.setMaxLocals(getGlobal(MAX_LOCAL));
+            methods.put(g, m);
+        }
+
+        // main calls each method in turn, stopping early if one halts
+        Code.setMethod(newMain);
+        putGlobal(MAX_LOCAL, 0);
+        beginScope();
+        newLocal("ARGS TO MAIN", Type.ARRAY_STRING);
+        Label end = Label("END_MAIN");
+        for (Group g : groups) {
+            Method m = methods.get(g);
+            if (m == null) {
+                g.statements.forEach(CodeGen::writeStatementCode);
+                continue;
+            }
+            emit("invokestatic", className + "/" + m.getName() + m.getDescriptor());
+            if (m.getDescriptor().endsWith("Z")) {
+                jump("ifeq", end);
+            }
+        }
+        endScope();
+        endScope();
+        setLabel(end);
+        emit("return");
+        newMain.setMaxLocals(getGlobal(MAX_LOCAL));
+        return program;
+    }
+}
@@ -0,0 +1,746 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package sal.small;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static sal.small.Token.*;
+
+/**
+ * The static single assignment form of a program: basic blocks of
+ * {@link SsaValue}s, each given once, with phis where the paths of 'si',
+ * 'tantque', 'jusqua', 'aiguiller' and '?' join. Every expression of the AST
+ * is mapped to its value, so a pass can find out what the SSA form knows
+ * about an expression and then change the AST, which is still what the code
+ * generator works from.
+ *
+ * The form is built straight from the AST in one walk, keeping the value of
+ * each variable per block and making phis only where a variable is read in a
+ * block with several ways in. A block whose predecessors aren't all known
+ * yet (the top of a loop) gets "incomplete" phis, which are filled in when
+ * it is sealed. A phi whose operands turn out all the same is replaced by
+ * that value.
+ *
+ * @author Simon
+ * @author Azarias
+ */
+class Ssa {
+
+    /**
+     * Where 'rompre' and 'continuer' go: 'next' is null for an 'aiguiller'.
+     */
+    private static class Target {
+
+        final Block exit;
+        final Block next;
+
+        Target(Block exit, Block next) {
+            this.exit = exit;
+            this.next = next;
+        }
+    }
+
+    /**
+     * The blocks of a 'tantque' or 'jusqua': those from which the top of the
+     * loop can be reached again without leaving it.
+     */
+    static class Loop {
+
+        final Block header;
+        final Set<Block> blocks = new HashSet<>();
+
+        Loop(Block header) {
+            this.header = header;
+        }
+
+        boolean contains(Block block) {
+            return blocks.contains(block);
+        }
+
+        /**
+         * @return the value a variable has on the way into the loop, null if
+         * it isn't changed in the loop or has no value before it.
+         */
+        SsaValue entering(String name) {
+            for (SsaValue phi : header.phis) {
+                if (name.equals(phi.text)) {
+                    for (int i = 0; i < header.predecessors.size(); i++) {
+                        SsaValue value = phi.operands.get(i).resolve();
+                        if (!contains(header.predecessors.get(i)) && value.kind != SsaValue.Kind.UNDEFINED) {
+                            return value;
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    final List<Block> blocks = new ArrayList<>();
+    final Block entry;
+    private final List<Block> order = new ArrayList<>();
+    private final Map<Tree<Token>, SsaValue> values = new IdentityHashMap<>();
+    private final Set<Tree<Token>> shared = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Deque<Target> targets = new ArrayDeque<>();
+    private final Map<Tree<Token>, Block> headers = new IdentityHashMap<>();
+    private final Map<Tree<Token>, Loop> loops = new IdentityHashMap<>();
+    private Block current;
+    private int nextValue;
+
+    private Ssa() {
+        entry = newBlock();
+        entry.sealed = true;
+        current = entry;
+    }
+
+    /**
+     * Build the SSA form of a program.
+     *
+     * @param program AST of the program.
+     * @return its SSA form, with dominators worked out.
+     */
+    static Ssa build(Tree<Token> program) {
+        Ssa ssa = new Ssa();
+        ssa.statement(program);
+        ssa.dominators();
+        ssa.loops();
+        ssa.types();
+        return ssa;
+    }
+
+    /**
+     * @param expression a node of the AST.
+     * @return its value, or null if it isn't an expression the SSA form
+     * knows about.
+     */
+    SsaValue value(Tree<Token> expression) {
+        if (shared.contains(expression)) {
+            return null;	// the same node at two places in the tree
+        }
+        SsaValue value = values.get(expression);
+        return value == null ? null : value.resolve();
+    }
+
+    /**
+     * @param statement a 'tantque' or 'jusqua' of the AST.
+     * @return the loop, or null if it can't be reached.
+     */
+    Loop loop(Tree<Token> statement) {
+        return loops.get(statement);
+    }
+
+    /**
+     * @return the blocks which can be reached, each after all its dominators.
+     */
+    List<Block> reversePostorder() {
+        return order;
+    }
+
+    /**
+     * Print the blocks, for looking at what a pass has to work with.
+     */
+    void print(PrintStream out) {
+        order.forEach(out::print);
+    }
+
+    private Block newBlock() {
+        Block block = new Block(blocks.size());
+        blocks.add(block);
+        return block;
+    }
+
+    /**
+     * Start a new block nothing jumps to, for the code after 'rompre' etc.
+     */
+    private void unreachable() {
+        current = newBlock();
+        current.sealed = true;
+    }
+
+    private void jump(Block target) {
+        current.addSuccessor(target);
+    }
+
+    private SsaValue newValue(SsaValue.Kind kind, Token token, String text, Block block) {
+        return new SsaValue(nextValue++, kind, token, text, block);
+    }
+
+    private SsaValue add(SsaValue.Kind kind, Token token, SsaValue... operands) {
+        SsaValue value = newValue(kind, token, null, current);
+        for (SsaValue operand : operands) {
+            value.addOperand(operand);
+        }
+        current.values.add(value);
+        return value;
+    }
+
+    ////////////////////////// variables ///////////////////////////////
+    private void write(String name, SsaValue value) {
+        current.definitions.put(name, value);
+    }
+
+    private SsaValue read(String name, Block block) {
+        SsaValue value = block.definitions.get(name);
+        if (value != null) {
+            return value.resolve();
+        }
+        if (!block.sealed) {
+            value = phi(block, name);
+            block.incomplete.put(name, value);
+        } else if (block.predecessors.isEmpty()) {
+            value = newValue(SsaValue.Kind.UNDEFINED, IDENTIFIER, name, entry);
+        } else if (block.predecessors.size() == 1) {
+            value = read(name, block.predecessors.get(0));
+        } else {
+            // a phi first, so a loop back to here finds it
+            SsaValue phi = phi(block, name);
+            block.definitions.put(name, phi);
+            value = addOperands(phi);
+        }
+        block.definitions.put(name, value);
+        return value;
+    }
+
+    private SsaValue phi(Block block, String name) {
+        SsaValue phi = newValue(SsaValue.Kind.PHI, null, name, block);
+        block.phis.add(phi);
+        return phi;
+    }
+
+    private SsaValue addOperands(SsaValue phi) {
+        for (Block predecessor : phi.block.predecessors) {
+            phi.addOperand(read(phi.text, predecessor));
+        }
+        return removeTrivial(phi);
+    }
+
+    /**
+     * Replace a phi whose operands are all the same value (or the phi
+     * itself) by that value.
+     */
+    private SsaValue removeTrivial(SsaValue phi) {
+        SsaValue same = null;
+        for (SsaValue operand : phi.operands) {
+            if (operand == same || operand == phi) {
+                continue;
+            }
+            if (same != null) {
+                return phi;	// joins different values
+            }
+            same = operand;
+        }
+        if (same == null) {
+            same = newValue(SsaValue.Kind.UNDEFINED, IDENTIFIER, phi.text, entry);
+        }
+        List<SsaValue> users = new ArrayList<>(phi.users);
+        users.removeIf(user -> user == phi);
+        phi.replaceBy(same);
+        phi.block.phis.remove(phi);
+        for (SsaValue user : users) {
+            if (user.isPhi() && user.resolve() == user) {
+                removeTrivial(user);	// may have been waiting on this one
+            }
+        }
+        return same;
+    }
+
+    /**
+     * No more predecessors will be added to a block: fill in its phis.
+     */
+    private void seal(Block block) {
+        for (SsaValue phi : block.incomplete.values()) {
+            addOperands(phi);
+        }
+        block.incomplete.clear();
+        block.sealed = true;
+    }
+
+    ////////////////////////// statements ///////////////////////////////
+    private void statement(Tree<Token> tree) {
+        if (tree == null) {
+            return;
+        }
+        switch (tree.token()) {
+            case STATEMENTLIST:
+            case BLOCK:
+                tree.allChildren().forEach(this::statement);
+                return;
+            case ASSIGN:
+                write(tree.child(0).toString(), expression(tree.child(1)));
+                return;
+            case INCREMENT:
+            case DECREMENT: {
+                String name = tree.child(0).toString();
+                SsaValue one = constant(NUMBER, "1");
+                write(name, add(SsaValue.Kind.OPERATION, tree.token() == INCREMENT ? PLUS : MINUS, read(name, current), one));
+                return;
+            }
+            case READ_STR:
+                write(tree.toString(), add(SsaValue.Kind.UNKNOWN, READ_STR));
+                return;
+            case RSQ:
+                add(SsaValue.Kind.EFFECT, RSQ, expression(tree.child(0)), expression(tree.child(1)), expression(tree.child(2)));
+                return;
+            case PRINT:
+                add(SsaValue.Kind.EFFECT, PRINT, expression(tree.child(0)));
+                return;
+            case ARRAY_FILL:
+            case ARRAY_COPY:
+                add(SsaValue.Kind.EFFECT, tree.token(), operands(tree));
+                return;
+            case HALT:
+                unreachable();
+                return;
+            case BREAK:
+                breakStatement();
+                return;
+            case CONTINUE:
+                for (Target target : targets) {
+                    if (target.next != null) {
+                        jump(target.next);
+                        break;
+                    }
+                }
+                unreachable();
+                return;
+            case IF:
+                ifStatement(tree);
+                return;
+            case WHILE:
+                whileStatement(tree);
+                return;
+            case UNTIL:
+                untilStatement(tree);
+                return;
+            case SWITCH:
+                switchStatement(tree);
+                return;
+            default:
+        }
+    }
+
+    /**
+     * 'rompre' leaves the nearest loop, or the nearest 'aiguiller' if it
+     * isn't in a loop, as {@link CodeGen} does.
+     */
+    private void breakStatement() {
+        Block exit = null;
+        for (Target target : targets) {
+            if (target.next != null) {
+                exit = target.exit;
+                break;
+            }
+            if (exit == null) {
+                exit = target.exit;
+            }
+        }
+        if (exit != null) {
+            jump(exit);
+        }
+        unreachable();
+    }
+
+    private void ifStatement(Tree<Token> tree) {
+        Block endIf = newBlock();
+        boolean hasElse = false;
+        for (int i = 0; i < tree.children(); i += 2) {
+            Tree<Token> test = tree.child(i);
+            if (test == null) {
+                hasElse = true;
+                statement(tree.child(i + 1));
+                jump(endIf);
+                break;
+            }
+            expression(test);
+            Block then = newBlock();
+            Block otherwise = newBlock();
+            jump(then);
+            jump(otherwise);
+            seal(then);
+            seal(otherwise);
+            current = then;
+            statement(tree.child(i + 1));
+            jump(endIf);
+            current = otherwise;
+        }
+        if (!hasElse) {
+            jump(endIf);
+        }
+        seal(endIf);
+        current = endIf;
+    }
+
+    private void whileStatement(Tree<Token> tree) {
+        Block top = newBlock();
+        Block exit = newBlock();
+        headers.put(tree, top);
+        jump(top);
+        current = top;
+        if (tree.child(0) != null) {
+            expression(tree.child(0));
+            jump(exit);
+        }
+        Block body = newBlock();
+        jump(body);
+        seal(body);
+        current = body;
+        targets.push(new Target(exit, top));
+        statement(tree.child(1));
+        targets.pop();
+        jump(top);
+        seal(top);
+        seal(exit);
+        current = exit;
+    }
+
+    private void untilStatement(Tree<Token> tree) {
+        Block start = newBlock();
+        Block test = newBlock();
+        Block exit = newBlock();
+        headers.put(tree, start);
+        jump(start);
+        current = start;
+        targets.push(new Target(exit, test));
+        statement(tree.child(1));
+        targets.pop();
+        jump(test);
+        seal(test);
+        current = test;
+        if (tree.child(0) != null) {
+            expression(tree.child(0));
+            jump(start);
+        }
+        jump(exit);
+        seal(start);
+        seal(exit);
+        current = exit;
+    }
+
+    /**
+     * The cases are tested one after another, and each case falls through
+     * into the next.
+     */
+    private void switchStatement(Tree<Token> tree) {
+        Block exit = newBlock();
+        Block dispatch = current;
+        boolean hasDefault = false;
+        for (int i = 0; i < tree.children(); i += 2) {
+            Tree<Token> test = tree.child(i);
+            if (test == null) {
+                hasDefault = true;
+            } else if (test.token() == EQ && values.containsKey(test.child(0))) {
+                // the switched expression is shared by every test
+                SsaValue value = add(SsaValue.Kind.OPERATION, EQ, values.get(test.child(0)).resolve(), expression(test.child(1)));
+                values.put(test, value);
+            } else {
+                expression(test);
+            }
+        }
+        targets.push(new Target(exit, null));
+        Block previous = null;
+        for (int i = 0; i < tree.children(); i += 2) {
+            Block body = newBlock();
+            dispatch.addSuccessor(body);
+            if (previous != null) {
+                previous.addSuccessor(body);
+            }
+            seal(body);
+            current = body;
+            statement(tree.child(i + 1));
+            previous = current;
+        }
+        targets.pop();
+        if (previous != null) {
+            previous.addSuccessor(exit);
+        }
+        if (!hasDefault) {
+            dispatch.addSuccessor(exit);
+        }
+        seal(exit);
+        current = exit;
+    }
+
+    ////////////////////////// expressions ///////////////////////////////
+    private SsaValue constant(Token token, String text) {
+        SsaValue value = newValue(SsaValue.Kind.CONSTANT, token, text, current);
+        current.values.add(value);
+        return value;
+    }
+
+    private SsaValue expression(Tree<Token> tree) {
+        SsaValue value;
+        if (tree.isLeaf()) {
+            switch (tree.token()) {
+                case NUMBER:
+                case STRING:
+                    value = constant(tree.token(), tree.toString());
+                    break;
+                case IDENTIFIER:
+                    value = read(tree.toString(), current);
+                    break;
+                default:
+                    value = add(SsaValue.Kind.UNKNOWN, tree.token());
+            }
+        } else {
+            switch (tree.token()) {
+                case QUERY:
+                    value = query(tree);
+                    break;
+                case LSQ:
+                    value = add(SsaValue.Kind.UNKNOWN, LSQ, expression(tree.child(0)), expression(tree.child(1)));
+                    break;
+                case NEW_ARRAY:
+                    value = add(SsaValue.Kind.UNKNOWN, NEW_ARRAY, expression(tree.child(0)));
+                    value.type = tree.child(1).token() == TYPE_STRING ? Type.ARRAY_STRING : Type.ARRAY_INT;
+                    break;
+                case ARRAY_REUSE:
+                    value = add(SsaValue.Kind.UNKNOWN, ARRAY_REUSE, expression(tree.child(0)), expression(tree.child(1)));
+                    value.type = tree.child(2).token() == TYPE_STRING ? Type.ARRAY_STRING : Type.ARRAY_INT;
+                    break;
+                case ARRAY_SUM:
+                case ARRAY_MIN:
+                case ARRAY_MAX:
+                    // the elements may have changed since the last time
+                    value = add(SsaValue.Kind.UNKNOWN, tree.token(), operands(tree));
+                    value.type = Type.INT;
+                    break;
+                default:
+                    value = add(SsaValue.Kind.OPERATION, tree.token(), operands(tree));
+            }
+        }
+        if (values.put(tree, value) != null) {
+            shared.add(tree);
+        }
+        return value;
+    }
+
+    private SsaValue[] operands(Tree<Token> tree) {
+        List<SsaValue> operands = new ArrayList<>();
+        for (Tree<Token> child : tree.allChildren()) {
+            operands.add(expression(child));
+        }
+        return operands.toArray(new SsaValue[0]);
+    }
+
+    /**
+     * Only one of the two values of 'test ? a : b' is worked out.
+     */
+    private SsaValue query(Tree<Token> tree) {
+        expression(tree.child(0));
+        Block ifTrue = newBlock();
+        Block ifFalse = newBlock();
+        Block join = newBlock();
+        jump(ifTrue);
+        jump(ifFalse);
+        seal(ifTrue);
+        seal(ifFalse);
+        current = ifTrue;
+        SsaValue first = expression(tree.child(1));
+        jump(join);
+        current = ifFalse;
+        SsaValue second = expression(tree.child(2));
+        jump(join);
+        seal(join);
+        current = join;
+        SsaValue phi = phi(join, null);
+        phi.addOperand(first);
+        phi.addOperand(second);
+        return removeTrivial(phi);
+    }
+
+    ////////////////////////// analysis ///////////////////////////////
+    /**
+     * Put the blocks in reverse postorder and find the dominator of each, by
+     * the method of Cooper, Harvey and Kennedy: go over the blocks in order,
+     * taking the nearest common dominator of the predecessors, until nothing
+     * changes.
+     */
+    private void dominators() {
+        // depth first, without recursion as programs can be long
+        Set<Block> seen = new HashSet<>();
+        Deque<Block> path = new ArrayDeque<>();
+        Deque<Integer> nextEdge = new ArrayDeque<>();
+        List<Block> postorder = new ArrayList<>();
+        seen.add(entry);
+        path.push(entry);
+        nextEdge.push(0);
+        while (!path.isEmpty()) {
+            Block block = path.peek();
+            int edge = nextEdge.pop();
+            if (edge < block.successors.size()) {
+                nextEdge.push(edge + 1);
+                Block next = block.successors.get(edge);
+                if (seen.add(next)) {
+                    path.push(next);
+                    nextEdge.push(0);
+                }
+            } else {
+                postorder.add(path.pop());
+            }
+        }
+        for (int i = postorder.size() - 1; i >= 0; i--) {
+            Block block = postorder.get(i);
+            block.order = order.size();
+            order.add(block);
+        }
+        entry.dominator = entry;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Block block : order) {
+                if (block == entry) {
+                    continue;
+                }
+                Block dominator = null;
+                for (Block predecessor : block.predecessors) {
+                    if (predecessor.dominator != null) {
+                        dominator = dominator == null ? predecessor : common(predecessor, dominator);
+                    }
+                }
+                if (dominator != block.dominator) {
+                    block.dominator = dominator;
+                    changed = true;
+                }
+            }
+        }
+        entry.dominator = null;
+    }
+
+    /**
+     * Find the blocks of each loop, working back from the jumps to its top.
+     */
+    private void loops() {
+        headers.forEach((statement, header) -> {
+            if (header.order < 0) {
+                return;	// can't be reached
+            }
+            Loop loop = new Loop(header);
+            loop.blocks.add(header);
+            Deque<Block> work = new ArrayDeque<>();
+            for (Block predecessor : header.predecessors) {
+                if (header.dominates(predecessor)) {
+                    work.push(predecessor);
+                }
+            }
+            while (!work.isEmpty()) {
+                Block block = work.pop();
+                if (loop.blocks.add(block)) {
+                    block.predecessors.forEach(work::push);
+                }
+            }
+            loops.put(statement, loop);
+        });
+    }
+
+    private static Block common(Block a, Block b) {
+        while (a != b) {
+            while (a.order > b.order) {
+                a = a.dominator;
+            }
+            while (b.order > a.order) {
+                b = b.dominator;
+            }
+        }
+        return a;
+    }
+
+    /**
+     * Give each value a type, as far as it can be known before code
+     * generation. Phis in loops depend on values later in the program, so
+     * this goes round until nothing changes.
+     */
+    private void types() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Block block : order) {
+                for (SsaValue phi : block.phis) {
+                    changed |= setType(phi, phiType(phi));
+                }
+                for (SsaValue value : block.values) {
+                    changed |= setType(value, type(value));
+                }
+            }
+        }
+    }
+
+    private static boolean setType(SsaValue value, Type type) {
+        if (type == null || type == value.type) {
+            return false;
+        }
+        value.type = type;
+        return true;
+    }
+
+    private static Type phiType(SsaValue phi) {
+        Type type = null;
+        for (SsaValue operand : phi.operands) {
+            if (operand.type != null) {
+                if (type != null && type != operand.type) {
+                    return null;
+                }
+                type = operand.type;
+            }
+        }
+        return type;
+    }
+
+    private static Type type(SsaValue value) {
+        switch (value.kind) {
+            case CONSTANT:
+                return value.token == STRING ? Type.STRING : Type.INT;
+            case EFFECT:
+                return null;
+            case UNKNOWN:
+                switch (value.token) {
+                    case READ_STR:
+                        return Type.STRING;
+                    case LSQ: {
+                        Type array = value.operands.get(0).type;
+                        return array == Type.ARRAY_STRING ? Type.STRING : array == Type.ARRAY_INT ? Type.INT : null;
+                    }
+                    default:
+                        return value.type;
+                }
+            default:
+        }
+        switch (value.token) {
+            case PLUS: {
+                Type left = value.operands.get(0).type;
+                Type right = value.operands.get(1).type;
+                if (left == Type.STRING || right == Type.STRING) {
+                    return Type.STRING;
+                }
+                return left == Type.INT && right == Type.INT ? Type.INT : null;
+            }
+            case SHL:
+            case SHR:
+                return value.operands.get(0).type;
+            case TO_STR:
+                return Type.STRING;
+            default:
+                return Type.INT;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package sal.small;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One value of the SSA form of a program (see {@link Ssa}): a constant, the
+ * result of an operator, a phi joining the values a variable has on the
+ * ways into a block, or something only known at run time such as a line
+ * read by 'lire'.
+ *
+ * Statements which do something rather than make a value (storing into an
+ * array, printing) are values too, so a block lists everything it does in
+ * order.
+ *
+ * @author Simon
+ * @author Azarias
+ */
+class SsaValue {
+
+    /**
+     * What kind of value it is.
+     */
+    enum Kind {
+        CONSTANT, // NUMBER or STRING leaf
+        OPERATION, // an operator applied to the operands
+        PHI, // the value of a variable where paths join
+        UNKNOWN, // read, array element, new array: different every time
+        EFFECT, // a statement with no value
+        UNDEFINED	// a variable before it is given a value
+    }
+
+    final int id;
+    final Kind kind;
+    final Token token;
+    final String text;
+    final Block block;
+    final List<SsaValue> operands = new ArrayList<>();
+    final List<SsaValue> users = new ArrayList<>();
+    Type type;
+    private SsaValue replacement;
+
+    /**
+     * @param id unique number, in the order values are made.
+     * @param kind what it is.
+     * @param token the operator, constant or statement.
+     * @param text text of a constant, name of the variable for a phi.
+     * @param block where it is worked out.
+     */
+    SsaValue(int id, Kind kind, Token token, String text, Block block) {
+        this.id = id;
+        this.kind = kind;
+        this.token = token;
+        this.text = text;
+        this.block = block;
+    }
+
+    void addOperand(SsaValue operand) {
+        operands.add(operand);
+        operand.users.add(this);
+    }
+
+    /**
+     * @return the value this one stands for: itself unless it is a phi which
+     * turned out to be redundant.
+     */
+    SsaValue resolve() {
+        SsaValue value = this;
+        while (value.replacement != null) {
+            value = value.replacement;
+        }
+        return value;
+    }
+
+    /**
+     * Make every use of this value use another instead.
+     */
+    void replaceBy(SsaValue other) {
+        replacement = other;
+        for (SsaValue user : users) {
+            user.operands.replaceAll(operand -> operand == this ? other : operand);
+            if (user != this) {
+                other.users.add(user);
+            }
+        }
+    }
+
+    boolean isConstant() {
+        return kind == Kind.CONSTANT;
+    }
+
+    boolean isPhi() {
+        return kind == Kind.PHI;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("v" + id + " = ");
+        switch (kind) {
+            case CONSTANT:
+                return text.append(this.text).toString();
+            case PHI:
+                text.append("phi ").append(this.text);
+                break;
+            case UNDEFINED:
+                return text.append("undefined ").append(this.text).toString();
+            default:
+                text.append(token);
+        }
+        for (SsaValue operand : operands) {
+            text.append(" v").append(operand.id);
+        }
+        return text.toString();
+    }
+}
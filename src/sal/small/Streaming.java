@@ -0,0 +1,168 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package sal.small;
+
+import sal.util.ErrorStream;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static sal.small.Code.*;
+import static sal.small.Descriptor.*;
+import static sal.small.Scope.*;
+
+/**
+ * Compiles a program a statement at a time (-stream), so however big it is
+ * only one statement's tree and one method's code are held at once.
+ *
+ * The code of each top level statement is generated as soon as it is parsed
+ * and added to a part: a private static method which main calls. When a
+ * part reaches the -split budget it is written out and a new one begun. The
+ * top level variables are static fields, so all the parts can use them. A
+ * part containing a 'halt' returns false to make main stop too, as for
+ * {@link Split}.
+ *
+ * The fields and main are only known at the end, and Jasmin wants the fields
+ * before the methods, so the parts go to a file of their own which is copied
+ * after main. The tree optimiser needs the whole program, so a streamed
+ * program is compiled as with -O0.
+ *
+ * @author Simon
+ * @author Azarias
+ */
+public class Streaming {
+
+    private final String className = getGlobal("CLASS NAME");
+    private final PrintStream parts;
+    private final List<Method> called = new ArrayList<>();   // the parts, with no code kept
+
+    private List<Instruction> code = new ArrayList<>();
+    private int size = 0;
+    private boolean halts = false;
+
+    private Streaming(PrintStream parts) {
+        this.parts = parts;
+    }
+
+    /**
+     * Compile the program the lexer has been given to Jasmin.
+     *
+     * @param jasmin the .j file to write.
+     * @param partsFile where to keep the parts until the end, deleted when
+     * done.
+     * @return false if there were errors, when nothing is written.
+     * @throws IOException if a file can't be written.
+     */
+    public static boolean program(Path jasmin, Path partsFile) throws IOException {
+        try {
+            Streaming streaming;
+            try (PrintStream parts = new PrintStream(new BufferedOutputStream(Files.newOutputStream(partsFile)))) {
+                streaming = new Streaming(parts);
+                streaming.statements();
+            }
+            if (ErrorStream.errorCount() != 0) {
+                return false;
+            }
+            try (PrintStream out = new PrintStream(new BufferedOutputStream(Files.newOutputStream(jasmin)))) {
+                CodeGen.writeProgram(out, streaming.main());
+                Files.copy(partsFile, out);
+            }
+            return true;
+        } finally {
+            Files.deleteIfExists(partsFile);
+        }
+    }
+
+    private void statements() {
+        int room = Split.getBudget() - Split.getBudget() / 8;
+        Compilation compilation = Compilation.current();
+        beginScope();
+        compilation.fields = compilation.currentScope;
+        Parse.start();
+        for (Tree<Token> statement = Parse.nextStatement(); statement != null; statement = Parse.nextStatement()) {
+            if (ErrorStream.errorCount() != 0) {
+                // go on parsing to find any other errors, but code is no use
+                continue;
+            }
+            boolean halting = Split.halts(statement);
+            Method method = new Method("", halting ? "()Z" : "()V", Method.PRIVATE | Method.STATIC);
+            Code.setMethod(method);
+            // each statement starts again from local 0, whichever part it goes in
+            beginScope();
+            CodeGen.writeStatementCode(statement);
+            endScope();
+            int bytes = ClassFile.offsets(method)[method.getCode().size()];
+            if (room > 0 && size > 0 && size + bytes > room) {
+                endPart();
+            }
+            code.addAll(method.getCode());
+            size += bytes;
+            halts |= halting;
+        }
+        if (size > 0) {
+            endPart();
+        }
+    }
+
+    /**
+     * Write the part filled so far.
+     */
+    private void endPart() {
+        Method part = new Method("part" + (called.size() + 1), halts ? "()Z" : "()V", Method.PRIVATE | Method.STATIC);
+        part.getCode().addAll(code);
+        Code.setMethod(part);
+        if (halts) {
+            loadInt(1);
+            emit("ireturn");
+        } else {
+            emit("return");
+        }
+        part.setMaxLocals(part.maxLocals());
+        CodeGen.writeMethod(parts, part);
+        called.add(new Method(part.getName(), part.getDescriptor(), Method.PRIVATE | Method.STATIC));
+        code = new ArrayList<>();
+        size = 0;
+        halts = false;
+    }
+
+    /**
+     * @return the class with the fields and a main which calls each part in
+     * turn, stopping early if one halts.
+     */
+    private ClassFile main() {
+        ClassFile program = new ClassFile(className);
+        variables().forEach(program::addField);
+        endScope();
+        Compilation.current().fields = null;
+        Method main = program.addMethod("main", "([Ljava/lang/String;)V", Method.PUBLIC | Method.STATIC);
+        Code.setMethod(main);
+        Label end = Label("END_MAIN");
+        for (Method part : called) {
+            emit("invokestatic", className + "/" + part.getName() + part.getDescriptor());
+            if (part.getDescriptor().endsWith("Z")) {
+                jump("ifeq", end);
+            }
+        }
+        setLabel(end);
+        emit("return");
+        main.setMaxLocals(1);
+        return program;
+    }
+}
@@ -92,6 +92,11 @@ public enum Token implements Patterned {
     COMPARE_STR, // compare strings
     NEW_ARRAY, // Create array
     ARRAY_LENGTH,
+    BIT_AND, // and of two ints, made by strength reduction
+    ARRAY_FILL, // set a run of elements to one value, made by loop idiom recognition
+    ARRAY_COPY, // copy a run of elements to another array
+    ARRAY_SUM, ARRAY_MIN, ARRAY_MAX, // reduce a run of elements to one int
+    ARRAY_REUSE, // clear an array of the size wanted or make a new one, made by Buffers
     // for internal use - please don't change!
     ZERO, ONE, SWAP;
 
@@ -132,15 +137,32 @@ public enum Token implements Patterned {
      * @param inputReader
      */
     static public void startLexer(BufferedReader inputReader) {
-        lexer.input(inputReader);
+        lexer().input(inputReader);
     }
 
     /**
-     * Create the Lexer to be used by this program.
+     * The patterns of the tokens, compiled once for all the lexers.
+     */
+    private static class Patterns {
+
+        static final Lexer<Token> LEXER = new Lexer(EOF, UNMATCHED, IDENTIFIER)
+                .whiteSpace(WS, comment("//"));
+    }
+
+    /**
+     * Create a Lexer for SMALL programs: each {@link Compilation} has its own.
      *
      */
-    static private final Lexer<Token> lexer = new Lexer(EOF, UNMATCHED, IDENTIFIER)
-            .whiteSpace(WS, comment("//"));
+    static Lexer<Token> newLexer() {
+        return new Lexer<>(Patterns.LEXER);
+    }
+
+    /**
+     * @return the lexer of the compilation on this thread.
+     */
+    static private Lexer<Token> lexer() {
+        return Compilation.current().lexer();
+    }
 
     /**
      * Static version of {@link Lexer#currentText()   Lexer.currentText()}}
@@ -148,7 +170,7 @@ public enum Token implements Patterned {
      * @return the text of the current token
      */
     static public String currentText() {
-        return lexer.currentText();
+        return lexer().currentText();
     }
 
     /**
@@ -157,7 +179,7 @@ public enum Token implements Patterned {
      * @return the text of the current token
      */
     static public Token currentToken() {
-        return lexer.currentToken();
+        return lexer().currentToken();
     }
 
     /**
@@ -171,13 +193,13 @@ public enum Token implements Patterned {
      *
      */
     static public Token scan() {
-        if (lexer.scan() == UNMATCHED) {
+        if (lexer().scan() == UNMATCHED) {
             // first check for I/O error
-            IOException err = lexer.ioException();
+            IOException err = lexer().ioException();
             if (err != null) {
                 parseError("I/O Exception: %s\n", err.getMessage());
             } else {
-                CharView buff = lexer.tokenInLine();
+                CharView buff = lexer().tokenInLine();
                 char errch = buff.charAt(0);
                 String errStr;
                 // an unmatched token is always 1 character long
@@ -190,7 +212,7 @@ public enum Token implements Patterned {
             }
             scan(); // call recursively after error
         }
-        return lexer.currentToken();
+        return lexer().currentToken();
     }
 
     /**
@@ -227,7 +249,7 @@ public enum Token implements Patterned {
     static public boolean mustBe(Token... tokens) {
         boolean check = skipToken(tokens);
         if (!check) {
-            parseError("Found %s when expecting %s\n", lexer.currentText(), Patterned.expected(tokens));
+            parseError("Found %s when expecting %s\n", lexer().currentText(), Patterned.expected(tokens));
         }
         return check;
     }
@@ -242,6 +264,6 @@ public enum Token implements Patterned {
      * which causes an error!
      */
     static public void parseError(String format, Object... args) {
-        ErrorStream.log(lexer.lineNumber(), lexer.tokenInLine(), format, args);
+        ErrorStream.log(lexer().lineNumber(), lexer().tokenInLine(), format, args);
     }
 }
@@ -98,6 +98,11 @@ import static java.util.Arrays.asList;
             public Tree<T> child(int childIndex) {
                 return node.get(childIndex);
             }
+
+            @Override
+            public void child(int childIndex, Tree<T> tree) {
+                node.set(childIndex, tree);
+            }
             
 
            @Override
@@ -34,6 +34,13 @@ public enum Type {
         return this.code;
     }
 
+    /**
+     * @return the type as written in a field or method descriptor.
+     */
+    public String getDescriptor() {
+        return isString() ? "L" + code + ";" : code;
+    }
+
     public boolean isInt() {
         return this == INT;
     }
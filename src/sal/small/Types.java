@@ -0,0 +1,178 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package sal.small;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static sal.small.Code.intValue;
+import static sal.small.Token.*;
+
+/**
+ * What the optimisation passes can know about the variables of a program
+ * before code generation: how many times each is given a value, and its type
+ * when every assignment agrees on it.
+ *
+ * @author Simon
+ * @author Azarias
+ */
+class Types {
+
+    private final Map<String, Integer> assignments = new HashMap<>();
+    private final Map<String, Type> types = new HashMap<>();
+
+    /**
+     * @param program AST of the whole program.
+     */
+    Types(Tree<Token> program) {
+        declarations(program);
+    }
+
+    /**
+     * Nothing known yet: the types are noted a statement at a time with
+     * {@link #declareFirst(String, Type)}.
+     */
+    Types() {
+    }
+
+    /**
+     * Count assignments and note the type of every variable, in program
+     * order so each right hand side can be typed from what comes before.
+     */
+    private void declarations(Tree<Token> tree) {
+        if (tree == null || tree.isLeaf() && tree.token() != READ_STR) {
+            return;
+        }
+        switch (tree.token()) {
+            case ASSIGN:
+                declare(tree.child(0).toString(), type(tree.child(1)));
+                return;
+            case READ_STR:
+                declare(tree.toString(), Type.STRING);
+                return;
+            case INCREMENT:
+            case DECREMENT:
+                declare(tree.child(0).toString(), Type.INT);
+                return;
+            default:
+                tree.allChildren().forEach(this::declarations);
+        }
+    }
+
+    private void declare(String name, Type type) {
+        assignments.merge(name, 1, Integer::sum);
+        if (!types.containsKey(name)) {
+            types.put(name, type);
+        } else if (types.get(name) != type) {
+            types.put(name, null);
+        }
+    }
+
+    /**
+     * Note the type of a variable given a value, unless it already has one:
+     * code generation keeps the type a variable was first given.
+     */
+    void declareFirst(String name, Type type) {
+        types.putIfAbsent(name, type);
+    }
+
+    /**
+     * @return how many statements give the variable a value.
+     */
+    int assignments(String name) {
+        return assignments.getOrDefault(name, 0);
+    }
+
+    /**
+     * @return the type of a variable, null if it isn't certain.
+     */
+    Type variable(String name) {
+        return types.get(name);
+    }
+
+    /**
+     * Type of an expression.
+     *
+     * @return the type, or null if it isn't certain.
+     */
+    Type type(Tree<Token> tree) {
+        switch (tree.token()) {
+            case NUMBER:
+                return Type.INT;
+            case STRING:
+                return Type.STRING;
+            case IDENTIFIER:
+                return types.get(tree.toString());
+            case LSQ: {
+                Type array = types.get(tree.child(0).toString());
+                return array == Type.ARRAY_INT ? Type.INT : array == Type.ARRAY_STRING ? Type.STRING : null;
+            }
+            case NEW_ARRAY:
+                return tree.child(1).token() == TYPE_STRING ? Type.ARRAY_STRING : Type.ARRAY_INT;
+            case ARRAY_REUSE:
+                return tree.child(2).token() == TYPE_STRING ? Type.ARRAY_STRING : Type.ARRAY_INT;
+            case QUERY: {
+                Type ifTrue = type(tree.child(1));
+                return ifTrue == type(tree.child(2)) ? ifTrue : null;
+            }
+            case PLUS: {
+                Type left = type(tree.child(0));
+                Type right = type(tree.child(1));
+                if (left == Type.STRING || right == Type.STRING) {
+                    return Type.STRING;
+                }
+                return left == Type.INT && right == Type.INT ? Type.INT : null;
+            }
+            case SHL:
+            case SHR:
+                return type(tree.child(0));
+            case TO_STR:
+                return Type.STRING;
+            default:
+                return Type.INT;
+        }
+    }
+
+    /**
+     * True if working out an expression has no effect but its value: it
+     * can't throw an exception.
+     */
+    boolean safe(Tree<Token> tree) {
+        if (tree == null || tree.isLeaf()) {
+            return true;
+        }
+        switch (tree.token()) {
+            case LSQ:
+            case NEW_ARRAY:
+            case ARRAY_REUSE:
+            case ARRAY_SUM:
+            case ARRAY_MIN:
+            case ARRAY_MAX:
+                return false;
+            case DIVIDE:
+            case MOD:
+                return tree.child(1).token() == NUMBER && intValue(tree.child(1).toString()) != 0 && safe(tree.child(0));
+            case SHL:
+            case SHR:
+                // on a string these take a substring, which can fail
+                if (type(tree.child(0)) != Type.INT) {
+                    return false;
+                }
+            // fall through
+            default:
+                return tree.allChildren().stream().allMatch(this::safe);
+        }
+    }
+}
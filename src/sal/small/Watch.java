@@ -0,0 +1,175 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package sal.small;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Compile files again as they are saved (-watch). The folders of the files,
+ * and the folders named on the command line with their subfolders, are
+ * watched, and the .sm files which change are compiled in the same JVM, so
+ * the compiler is already loaded and warm.
+ *
+ * Saving a file usually makes several events, so the files are only compiled
+ * once nothing has changed for a moment.
+ *
+ * @author Simon
+ * @author Azarias
+ */
+class Watch {
+
+    /**
+     * Milliseconds without an event before the changed files are compiled.
+     */
+    private static final long QUIET = 50;
+
+    private final WatchService service;
+    // files named, from their full path to the name given
+    private final Map<Path, String> files = new HashMap<>();
+    // folders named, any .sm file in which is compiled
+    private final List<Path> folders = new ArrayList<>();
+    private final Consumer<List<String>> build;
+
+    private Watch(WatchService service, Consumer<List<String>> build) {
+        this.service = service;
+        this.build = build;
+    }
+
+    /**
+     * Wait for files to change and compile them, until interrupted.
+     *
+     * @param files the files compiled.
+     * @param folders the folders they came from.
+     * @param build compiles a list of files.
+     * @return the exit status.
+     */
+    static int watch(List<String> files, List<Path> folders, Consumer<List<String>> build) {
+        try (WatchService service = FileSystems.getDefault().newWatchService()) {
+            Watch watch = new Watch(service, build);
+            for (Path folder : folders) {
+                watch.folders.add(folder.toAbsolutePath().normalize());
+                watch.register(folder.toAbsolutePath().normalize());
+            }
+            for (String file : files) {
+                Path path = Paths.get(file).toAbsolutePath().normalize();
+                watch.files.put(path, file);
+                if (Files.isDirectory(path.getParent())) {
+                    path.getParent().register(service, ENTRY_CREATE, ENTRY_MODIFY);
+                }
+            }
+            System.out.println("Watching for changes");
+            watch.run();
+            return 0;
+        } catch (IOException e) {
+            System.err.printf("Couldn\'t watch the files : %s\n", e.getMessage());
+            return 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+    }
+
+    private void run() throws InterruptedException {
+        while (true) {
+            Set<Path> changed = new TreeSet<>();
+            WatchKey key = service.take();
+            while (key != null) {
+                events(key, changed);
+                key = service.poll(QUIET, TimeUnit.MILLISECONDS);
+            }
+            List<String> names = new ArrayList<>();
+            for (Path path : changed) {
+                // it may have been saved and then moved away
+                if (Files.isRegularFile(path)) {
+                    names.add(files.getOrDefault(path, path.toString()));
+                }
+            }
+            if (!names.isEmpty()) {
+                build.accept(names);
+            }
+        }
+    }
+
+    /**
+     * Add the files an event says have changed.
+     */
+    private void events(WatchKey key, Set<Path> changed) {
+        Path folder = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                // events were lost: compile everything
+                changed.addAll(files.keySet());
+                folders.forEach(f -> sources(f, changed));
+                continue;
+            }
+            Path path = folder.resolve((Path) event.context());
+            if (Files.isDirectory(path)) {
+                if (inFolder(path) && event.kind() == ENTRY_CREATE) {
+                    register(path);
+                    sources(path, changed);
+                }
+            } else if (files.containsKey(path) || path.toString().endsWith(".sm") && inFolder(path)) {
+                changed.add(path);
+            }
+        }
+        key.reset();
+    }
+
+    private boolean inFolder(Path path) {
+        return folders.stream().anyMatch(path::startsWith);
+    }
+
+    /**
+     * Watch a folder and its subfolders.
+     */
+    private void register(Path folder) {
+        try (Stream<Path> walk = Files.walk(folder)) {
+            for (Path path : (Iterable<Path>) walk.filter(Files::isDirectory)::iterator) {
+                path.register(service, ENTRY_CREATE, ENTRY_MODIFY);
+            }
+        } catch (IOException e) {
+            System.err.printf("Couldn\'t watch %s : %s\n", folder, e.getMessage());
+        }
+    }
+
+    /**
+     * Add the .sm files in a folder and its subfolders.
+     */
+    private static void sources(Path folder, Set<Path> into) {
+        try (Stream<Path> walk = Files.walk(folder)) {
+            walk.filter(p -> p.toString().endsWith(".sm") && Files.isRegularFile(p)).forEach(into::add);
+        } catch (IOException e) {
+            System.err.printf("Couldn\'t read folder %s : %s\n", folder, e.getMessage());
+        }
+    }
+}
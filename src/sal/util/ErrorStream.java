@@ -37,34 +37,63 @@ import java.io.PrintStream;
  */
 public class ErrorStream {
 
-    private static PrintStream err = System.err;
+    /**
+     * Where the messages of one compilation go, and how many errors it has
+     * had. Each thread has its own, so compilations on different threads
+     * don't mix their messages or counts.
+     */
+    public static class Sink {
+
+        private PrintStream err;
+        private String errorSource;
+        private int errorCount = 0;
+
+        public Sink(PrintStream err, String errorSource) {
+            this.err = err;
+            this.errorSource = (errorSource == null) ? "" : errorSource;
+        }
+
+        public int errorCount() { return errorCount; }
+    }
 
-   private static boolean stackTrace = false;
+    private static final ThreadLocal<Sink> sink = ThreadLocal.withInitial(() -> new Sink(System.err, ""));
+
+   private static volatile boolean stackTrace = false;
+
+    /**
+     * Send this thread's messages to another sink.
+     *
+     * @param s the sink to use.
+     * @return the sink used until now, to put back when done.
+     */
+    public static Sink use(Sink s) {
+        Sink previous = sink.get();
+        sink.set(s);
+        return previous;
+    }
 
     public static void errorStream(PrintStream ps) {
-        err = ps;
+        sink.get().err = ps;
     }
 
     public static void stackTrace(boolean b) {
         stackTrace = b;
     }
 
-    private static String errorSource = "";
-
     public static void errorSource(String errSource) {
-        errorSource = (errSource == null) ? "" : errSource;
+        sink.get().errorSource = (errSource == null) ? "" : errSource;
     }
 
-    private static int errorCount = 0;
+    public static void errorCount(int n) { sink.get().errorCount = n; }
 
-    public static void errorCount(int n) { errorCount = n; }
+    public static void countError() { sink.get().errorCount++; }
 
-    public static void countError() { errorCount++; }
-
-    public static int  errorCount() { return errorCount; }
+    public static int  errorCount() { return sink.get().errorCount; }
 
 
     public static void log(int lineNumber) {
+        PrintStream err = sink.get().err;
+        String errorSource = sink.get().errorSource;
         if(errorSource.length() != 0)
             err.printf("%s : ", errorSource);
         if(lineNumber > 0)
@@ -74,7 +103,7 @@ public class ErrorStream {
 
     public static void log(int lineNumber, String format, Object... msg) {
         log(lineNumber);
-        err.printf(format, msg);
+        sink.get().err.printf(format, msg);
     }
 
     public static void log(String format, Object... msg) {
@@ -86,6 +115,7 @@ public class ErrorStream {
     }
 
     public static void log(int lineNumber, Throwable exception) {
+        PrintStream err = sink.get().err;
         countError();
         if(lineNumber > 0) {
             err.printf("At about line %d ", lineNumber);
@@ -102,7 +132,7 @@ public class ErrorStream {
     static private final String HIGHLIGHT = "^^^^^^^^^^";
 
 
-    private static void fill(int n, String chars) {
+    private static void fill(PrintStream err, int n, String chars) {
         int len = chars.length();
         while(n >= len) {
            err.append(chars);
@@ -116,6 +146,7 @@ public class ErrorStream {
     }
 
     public static void log(int lineNumber, CharView view, String format, Object... msg) {
+        PrintStream err = sink.get().err;
         // first print the underlying file buffer
         CharSequence buffer = view.sequence();
         err.append(buffer);
@@ -123,8 +154,8 @@ public class ErrorStream {
         if((length != 0) && (buffer.charAt(length-1) != '\n')) err.append('\n');
         // now use the view to highlight the error
         int start = view.getBeginIndex();
-        fill(start, SPACES);
-        fill(view.length(), HIGHLIGHT);
+        fill(err, start, SPACES);
+        fill(err, view.length(), HIGHLIGHT);
         err.println();
         err.print("Error ");
         if(lineNumber > 0) err.printf("Line %d, ", lineNumber);
@@ -200,6 +200,25 @@ public class Lexer<T extends Enum<T> & Patterned > {
         this.text   = new CharView();
     }
 
+    /** Construct a Lexer for the same tokens as another.  The compiled patterns are shared,
+     * so this is much quicker than building them again, but the matchers and input are its own.
+     *
+     * @param other         lexer to copy, which can still be used.
+     */
+    public Lexer(Lexer<T> other)
+    {
+        this.EOF = other.EOF;
+        this.identifier = other.identifier;
+        this.currentToken = this.UNMATCHED = other.UNMATCHED;
+        this.words = other.words;
+        this.patternNames = other.patternNames;
+        this.tokenMatcher = other.tokenMatcher.pattern().matcher("");
+        this.spaceMatcher = other.spaceMatcher.pattern().matcher("");
+        this.buffer = new CharView();
+        this.lineNumber = 0;
+        this.text   = new CharView();
+    }
+
     /** Allow overriding of whitespace defaults.
      *
      * @param alts a list of patterns which correspond to white space.  These override the default.